@@ -0,0 +1,86 @@
+package hooks;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stable identity of a failure: the exception type and its top 'testrail.failure.fingerprint.frames'
+ * frames. The message is left out, it often holds values of the execution (IDs, times). Scenarios
+ * failing the same way share a fingerprint, so their comments can stay short and the full trace
+ * be uploaded once.
+ */
+public class FailureFingerprint {
+
+    private static final int FRAMES = Integer.getInteger("testrail.failure.fingerprint.frames", 5);
+    private static final int MESSAGE_LENGTH = Integer.getInteger("testrail.failure.message.max.chars", 500);
+
+    private final Throwable error;
+    private final String id;
+
+    private FailureFingerprint(Throwable error, String id) {
+        this.error = error;
+        this.id = id;
+    }
+
+    public static FailureFingerprint of(Throwable error) {
+        StringBuilder key = new StringBuilder(error.getClass().getName());
+        StackTraceElement[] frames = error.getStackTrace();
+        for (int i = 0; i < Math.min(FRAMES, frames.length); i++) {
+            key.append('\n').append(frames[i].getClassName()).append('.').append(frames[i].getMethodName())
+                    .append(':').append(frames[i].getLineNumber());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 6; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return new FailureFingerprint(error, hex.toString());
+        } catch (NoSuchAlgorithmException exception) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the exception type, its message cut to 'testrail.failure.message.max.chars' and the
+     * frames of the fingerprint
+     */
+    public String summary() {
+        String message = String.valueOf(error.getMessage());
+        if (message.length() > MESSAGE_LENGTH) {
+            message = message.substring(0, MESSAGE_LENGTH) + "... (" + message.length() + " chars)";
+        }
+        StringBuilder summary = new StringBuilder(error.getClass().getName()).append(": ").append(message).append('\n');
+        StackTraceElement[] frames = error.getStackTrace();
+        for (int i = 0; i < Math.min(FRAMES, frames.length); i++) {
+            summary.append(" at ").append(frames[i]).append('\n');
+        }
+        if (frames.length > FRAMES) {
+            summary.append(" ... ").append(frames.length - FRAMES).append(" more\n");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes the full trace, causes included, to a temporary file, deleted at exit at the latest
+     */
+    public Path writeTrace() throws IOException {
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        Path file = Files.createTempFile("failure-" + id + "-", ".txt");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, trace.toString());
+        return file;
+    }
+}
@@ -0,0 +1,235 @@
+package hooks;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import utils.LongLongMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * TestRail case IDs of every scenario of the feature files, read from the @TestRailId-### tags before
+ * the execution starts. Feature, scenario outline and examples tags are inherited, like Cucumber does.
+ *
+ * Scenarios are keyed by the path of their feature file relative to the directory it was found in
+ * and their line (the examples row for outline scenarios). Cucumber's scenario URI may carry a
+ * prefix (classpath:, the project directory, ...), so the lookup drops leading path segments until
+ * a key matches. Only English Gherkin keywords are recognized.
+ */
+public class FeatureTagIndex {
+
+    private static final Logger logger = LogManager.getLogger(FeatureTagIndex.class);
+
+    private static final String TAG = "TestRailId-";
+    private static final int REPORTED_PROBLEMS = 20;
+
+    private final Map<String, long[]> cases = new ConcurrentHashMap<>();
+    // Malformed tags, as "file:line: tag"
+    private final Queue<String> malformed = new ConcurrentLinkedQueue<>();
+
+    private FeatureTagIndex() {
+    }
+
+    /**
+     * Parses the feature files under the directories, in parallel. Missing directories are skipped
+     *
+     * @param dirs: Directories of the feature files
+     */
+    public static FeatureTagIndex scan(Collection<Path> dirs) throws IOException {
+        FeatureTagIndex index = new FeatureTagIndex();
+        List<Path[]> files = new ArrayList<>();
+        for (Path dir : dirs) {
+            if (!Files.isDirectory(dir)) {
+                logger.warn("Feature directory " + dir + " not found");
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(dir)) {
+                walk.filter(file -> file.toString().endsWith(".feature") && Files.isRegularFile(file))
+                        .forEach(file -> files.add(new Path[]{dir, file}));
+            }
+        }
+        try {
+            files.parallelStream().forEach(file -> index.parse(file[0], file[1]));
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        logger.info(index.cases.size() + " tagged scenarios found in " + files.size() + " feature files");
+        return index;
+    }
+
+    /**
+     * Returns the case IDs of the scenario, or null if it is not in the index
+     *
+     * @param uri:   Scenario.getUri()
+     * @param lines: Scenario.getLines()
+     */
+    public long[] getCaseIDs(String uri, List<Integer> lines) {
+        String path = uri.replace('\\', '/').replaceFirst("^(classpath|file):", "");
+        while (true) {
+            for (Integer line : lines) {
+                long[] ids = cases.get(path + ":" + line);
+                if (ids != null) {
+                    return ids;
+                }
+            }
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                return null;
+            }
+            path = path.substring(slash + 1);
+        }
+    }
+
+    public int size() {
+        return cases.size();
+    }
+
+    /**
+     * Checks every tagged case ID against the cases of the plan in one pass, and the tags for malformed IDs
+     *
+     * @param caseRuns: Run of each case of the plan
+     * @param strict:   Throw instead of logging a warning when a problem is found
+     * @return Number of problems found
+     */
+    public int validate(LongLongMap caseRuns, boolean strict) {
+        List<String> problems = new ArrayList<>(malformed);
+        cases.forEach((scenario, ids) -> {
+            for (long id : ids) {
+                if (!caseRuns.containsKey(id)) {
+                    problems.add(scenario + ": C" + id + " not in the plan");
+                }
+            }
+        });
+        if (problems.isEmpty()) {
+            return 0;
+        }
+        problems.sort(null);
+        String report = problems.size() + " problems with @" + TAG + " tags:\n"
+                + problems.stream().limit(REPORTED_PROBLEMS).collect(Collectors.joining("\n"))
+                + (problems.size() > REPORTED_PROBLEMS ? "\n..." : "");
+        if (strict) {
+            throw new IllegalStateException(report);
+        }
+        logger.warn(report);
+        return problems.size();
+    }
+
+    private void parse(Path dir, Path file) {
+        String name = dir.relativize(file).toString().replace('\\', '/');
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(file.toString(), exception);
+        }
+        long[] pending = new long[0];
+        long[] feature = new long[0];
+        long[] outline = null;
+        long[] examples = null;
+        boolean header = false;
+        String docString = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            int number = i + 1;
+            if (docString != null) {
+                if (line.startsWith(docString)) {
+                    docString = null;
+                }
+            } else if (line.startsWith("\"\"\"") || line.startsWith("```")) {
+                docString = line.substring(0, 3);
+            } else if (line.startsWith("@")) {
+                pending = concat(pending, parseTags(line, name + ":" + number));
+            } else if (line.startsWith("Feature:")) {
+                feature = pending;
+                pending = new long[0];
+            } else if (line.startsWith("Scenario Outline:") || line.startsWith("Scenario Template:")) {
+                outline = concat(feature, pending);
+                examples = null;
+                put(name, number, outline);
+                pending = new long[0];
+            } else if (line.startsWith("Scenario:") || line.startsWith("Example:")) {
+                outline = null;
+                examples = null;
+                put(name, number, concat(feature, pending));
+                pending = new long[0];
+            } else if (outline != null && (line.startsWith("Examples:") || line.startsWith("Scenarios:"))) {
+                examples = concat(outline, pending);
+                header = true;
+                pending = new long[0];
+            } else if (examples != null && line.startsWith("|")) {
+                if (!header) {
+                    put(name, number, examples);
+                }
+                header = false;
+            } else if (line.startsWith("Background:") || line.startsWith("Rule:")) {
+                outline = null;
+                examples = null;
+                pending = new long[0];
+            }
+        }
+    }
+
+    private void put(String file, int line, long[] ids) {
+        if (ids.length > 0 && cases.put(file + ":" + line, Arrays.stream(ids).distinct().toArray()) != null) {
+            logger.debug("Scenario " + file + ":" + line + " found in more than one feature directory");
+        }
+    }
+
+    // IDs of the @TestRailId-1,2 tags of a tag line
+    private long[] parseTags(String line, String location) {
+        long[] ids = new long[0];
+        for (String tag : line.split("\\s+")) {
+            if (tag.startsWith("#")) {
+                break;
+            }
+            ids = concat(ids, parseIds(tag, id -> malformed.add(location + ": " + tag)));
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the case IDs of a @TestRailId-1,2 tag, none for other tags. Used for the feature files and
+     * for the tags of scenarios not in the index, so both give a scenario the same cases
+     *
+     * @param tag:       Tag, with or without the @
+     * @param malformed: Called with each ID of the tag that is not a number
+     */
+    public static long[] parseIds(String tag, Consumer<String> malformed) {
+        int start = tag.indexOf(TAG);
+        if (start < 0) {
+            return new long[0];
+        }
+        long[] ids = new long[0];
+        for (String id : tag.substring(start + TAG.length()).split(",")) {
+            try {
+                ids = concat(ids, new long[]{Long.parseLong(id.trim())});
+            } catch (NumberFormatException exception) {
+                malformed.accept(id);
+            }
+        }
+        return ids;
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        long[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}
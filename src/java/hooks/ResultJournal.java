@@ -0,0 +1,411 @@
+package hooks;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import testrail.APIClient;
+import utils.LongLongMap;
+import utils.LongSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the results of one test execution, so results that were not posted when
+ * the JVM died (SIGKILL, OOM, CI timeout) can be posted by the next execution.
+ *
+ * Every record is framed as [length][type][payload][CRC32 of type and payload]; reading stops at the
+ * first torn or corrupt record, and replay() cuts the file there before it appends. Records are:
+ * RESULT (sequence number, case, run, status, comment), ACK (sequence numbers TestRail confirmed),
+ * FAILED_CASE (case and run to be marked failed at the end), CLOSED (the end of execution re-mark
+ * of failed cases has been journaled) and REMARKED (cases whose re-mark replay() has posted).
+ *
+ * The journal is written by the ResultReporter thread only and forced to disk once per drain of the
+ * result buffers. The file is locked while in use and deleted, still locked, when closed with every
+ * result acknowledged. replay() posts the unacknowledged results of journals left behind, and the
+ * failed case re-mark of executions that did not get to it, journaling what TestRail confirms as it
+ * goes, so a journal is never posted twice.
+ */
+public class ResultJournal implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(ResultJournal.class);
+
+    private static final byte RESULT = 1;
+    private static final byte ACK = 2;
+    private static final byte FAILED_CASE = 3;
+    private static final byte CLOSED = 4;
+    private static final byte REMARKED = 5;
+
+    private static final String PREFIX = "results-";
+    private static final String SUFFIX = ".journal";
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    private static final int REPLAY_BATCH_SIZE = Integer.getInteger("testrail.reporter.batch.size", 100);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+
+    private long nextSeq = 1;
+    private long acked;
+    private boolean dirty;
+
+    private ResultJournal(Path file, FileChannel channel, FileLock lock) {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Creates a new journal file in the directory. The file is created and locked under a name replay()
+     * does not look at, then moved to its journal name, so replay() never sees it unlocked
+     */
+    public static ResultJournal open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        String name = PREFIX + System.currentTimeMillis() + "-" + ProcessHandle.current().pid() + SUFFIX;
+        Path temporary = dir.resolve(name + ".new");
+        Path file = dir.resolve(name);
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            return new ResultJournal(file, channel, lock);
+        } catch (IOException | RuntimeException exception) {
+            channel.close();
+            Files.deleteIfExists(temporary);
+            throw exception;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a result, returns its sequence number
+     */
+    long append(long caseID, long runID, int statusID, String comment) throws IOException {
+        byte[] text = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+        long seq = nextSeq++;
+        ByteBuffer record = start(RESULT, 28 + text.length);
+        record.putLong(seq).putLong(caseID).putLong(runID).putInt(statusID).put(text);
+        write(record);
+        return seq;
+    }
+
+    /**
+     * Records that TestRail has confirmed the results
+     */
+    void ack(long[] seqs) throws IOException {
+        ByteBuffer record = start(ACK, 8 * seqs.length);
+        for (long seq : seqs) {
+            record.putLong(seq);
+        }
+        write(record);
+        acked += seqs.length;
+    }
+
+    /**
+     * Records a case to be marked failed at the end of the execution
+     */
+    void failedCase(long caseID, long runID) throws IOException {
+        write(start(FAILED_CASE, 16).putLong(caseID).putLong(runID));
+    }
+
+    /**
+     * Records that the re-mark of the cases has been posted by replay()
+     */
+    private void remarked(long[] caseIDs) throws IOException {
+        ByteBuffer record = start(REMARKED, 8 * caseIDs.length);
+        for (long caseID : caseIDs) {
+            record.putLong(caseID);
+        }
+        write(record);
+    }
+
+    /**
+     * Forces the records written since the last sync to disk
+     */
+    void sync() throws IOException {
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Closes the journal after the failed case re-mark has been reported: deletes it if every result
+     * was acknowledged, else marks it closed and keeps it for replay()
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        boolean complete = acked == nextSeq - 1;
+        if (complete) {
+            // Deleted while locked, so no replay() can take the lock of the file in between
+            Files.deleteIfExists(file);
+        } else {
+            write(start(CLOSED, 0));
+            sync();
+        }
+        lock.release();
+        channel.close();
+        if (!complete) {
+            logger.warn((nextSeq - 1 - acked) + " results not confirmed by TestRail, kept in " + file + " for replay");
+        }
+    }
+
+    private ByteBuffer start(byte type, int payload) {
+        int size = 4 + 1 + payload + 4;
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.putInt(1 + payload).put(type);
+        return buffer;
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        crc.reset();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        dirty = true;
+    }
+
+    // ------------------------------------------------------------------ replay
+
+    // seq is 0 for a re-mark
+    private record Result(long seq, long caseID, long runID, int statusID, String comment) {
+    }
+
+    /**
+     * Posts what the journals in the directory that no running execution holds have left: results
+     * not acknowledged by TestRail, then the failed case re-mark if the execution died before it.
+     * Journals are deleted once posted. If TestRail fails they are kept, with the results it confirmed
+     * acknowledged, for the next execution.
+     *
+     * @param dir:            Directory of the journals
+     * @param client:         The APIClient used to post the results
+     * @param failedStatusID: Status of the re-mark results
+     * @param failedComment:  Comment of the re-mark results
+     * @return Number of results posted
+     */
+    public static int replay(Path dir, APIClient client, int failedStatusID, String failedComment) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        int posted = 0;
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path journal : journals) {
+                posted += replayFile(journal, client, failedStatusID, failedComment);
+            }
+        } catch (IOException exception) {
+            logger.error("Could not list result journals in " + dir + ": " + exception);
+        }
+        return posted;
+    }
+
+    private static int replayFile(Path journal, APIClient client, int failedStatusID, String failedComment) {
+        List<Result> results = new ArrayList<>();
+        int[] posted = {0};
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException exception) {
+                lock = null;
+            }
+            if (lock == null) {
+                // Still written by a running execution, or replayed by another one
+                return 0;
+            }
+            Map<Long, Result> unacked = new LinkedHashMap<>();
+            LongLongMap failedCases = new LongLongMap();
+            LongSet remarked = new LongSet();
+            Contents contents = read(channel, unacked, failedCases, remarked);
+            // Records are appended after the last valid one: a torn tail left behind would hide them from the next replay
+            channel.truncate(contents.validEnd());
+            channel.position(contents.validEnd());
+
+            results.addAll(unacked.values());
+            if (!contents.closed()) {
+                failedCases.forEach((caseID, runID) -> {
+                    if (!remarked.contains(caseID)) {
+                        results.add(new Result(0, caseID, runID, failedStatusID, failedComment));
+                    }
+                });
+            }
+            if (!results.isEmpty()) {
+                logger.info("Replaying " + results.size() + " results from " + journal);
+            }
+            // What TestRail confirms is journaled at once, so a failure or a crash later does not post it again
+            ResultJournal replayed = new ResultJournal(journal, channel, lock);
+            try {
+                post(client, results, batch -> {
+                    long[] seqs = batch.stream().filter(result -> result.seq() != 0).mapToLong(Result::seq).toArray();
+                    long[] remarks = batch.stream().filter(result -> result.seq() == 0).mapToLong(Result::caseID).toArray();
+                    synchronized (replayed) {
+                        if (seqs.length > 0) {
+                            replayed.ack(seqs);
+                        }
+                        if (remarks.length > 0) {
+                            replayed.remarked(remarks);
+                        }
+                        replayed.sync();
+                        posted[0] += batch.size();
+                    }
+                });
+            } catch (Exception exception) {
+                logger.error("Could not replay result journal " + journal + ", " + (results.size() - posted[0])
+                        + " results kept for the next execution: " + exception);
+                return posted[0];
+            }
+            // Deleted while locked, so no other execution can take the lock of the file in between
+            Files.delete(journal);
+        } catch (IOException exception) {
+            logger.error("Could not replay result journal " + journal + ": " + exception);
+        }
+        return posted[0];
+    }
+
+    // validEnd is the offset after the last valid record
+    private record Contents(boolean closed, long validEnd) {
+    }
+
+    /**
+     * Reads the records up to the first torn or corrupt one
+     */
+    private static Contents read(FileChannel channel, Map<Long, Result> unacked, LongLongMap failedCases, LongSet remarked)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, channel.size()));
+        while (data.hasRemaining() && channel.read(data) >= 0) {
+            // read the whole file
+        }
+        data.flip();
+        boolean closed = false;
+        int validEnd = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (data.remaining() >= 4) {
+                int length = data.getInt();
+                if (length < 1 || length > MAX_RECORD || data.remaining() < length + 4) {
+                    break;
+                }
+                int start = data.position();
+                crc.reset();
+                crc.update(data.array(), start, length);
+                if ((int) crc.getValue() != data.getInt(start + length)) {
+                    break;
+                }
+                byte type = data.get();
+                switch (type) {
+                    case RESULT:
+                        long seq = data.getLong();
+                        long caseID = data.getLong();
+                        long runID = data.getLong();
+                        int statusID = data.getInt();
+                        String comment = new String(data.array(), data.position(), start + length - data.position(), StandardCharsets.UTF_8);
+                        unacked.put(seq, new Result(seq, caseID, runID, statusID, comment));
+                        break;
+                    case ACK:
+                        for (int i = 0; i < (length - 1) / 8; i++) {
+                            unacked.remove(data.getLong());
+                        }
+                        break;
+                    case FAILED_CASE:
+                        long failedCase = data.getLong();
+                        failedCases.put(failedCase, data.getLong());
+                        break;
+                    case CLOSED:
+                        closed = true;
+                        break;
+                    case REMARKED:
+                        for (int i = 0; i < (length - 1) / 8; i++) {
+                            remarked.add(data.getLong());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                validEnd = start + length + 4;
+                data.position(validEnd);
+            }
+        } catch (BufferUnderflowException exception) {
+            logger.warn("Malformed record in result journal, reading stopped: " + exception);
+        }
+        if (validEnd < data.limit()) {
+            logger.warn("Result journal has " + (data.limit() - validEnd) + " bytes after its last valid record, dropped");
+        }
+        return new Contents(closed, validEnd);
+    }
+
+    private interface Confirmed {
+        void accept(List<Result> batch) throws IOException;
+    }
+
+    // Posts the results with add_results_for_cases in journal order, one batch at a time per run and the runs in parallel.
+    // Each batch TestRail confirms is handed to confirmed before the next batch of its run is sent
+    private static void post(APIClient client, List<Result> results, Confirmed confirmed) throws Exception {
+        Map<Long, List<Result>> runs = new LinkedHashMap<>();
+        for (Result result : results) {
+            runs.computeIfAbsent(result.runID(), id -> new ArrayList<>()).add(result);
+        }
+        List<CompletableFuture<Object>> requests = new ArrayList<>();
+        for (Map.Entry<Long, List<Result>> run : runs.entrySet()) {
+            List<Result> runResults = run.getValue();
+            CompletableFuture<Object> previous = CompletableFuture.completedFuture(null);
+            for (int from = 0; from < runResults.size(); from += REPLAY_BATCH_SIZE) {
+                List<Result> batchResults = runResults.subList(from, Math.min(runResults.size(), from + REPLAY_BATCH_SIZE));
+                JSONArray batch = new JSONArray();
+                for (Result result : batchResults) {
+                    JSONObject json = new JSONObject();
+                    json.put("case_id", result.caseID());
+                    json.put("status_id", result.statusID());
+                    json.put("comment", result.comment());
+                    batch.add(json);
+                }
+                JSONObject data = new JSONObject();
+                data.put("results", batch);
+                previous = previous.thenCompose(ignored -> client.sendPostAsync("add_results_for_cases/" + run.getKey(), data))
+                        .thenApply(response -> {
+                            try {
+                                confirmed.accept(batchResults);
+                            } catch (IOException exception) {
+                                throw new UncheckedIOException(exception);
+                            }
+                            return response;
+                        });
+            }
+            requests.add(previous);
+        }
+        for (CompletableFuture<Object> request : requests) {
+            request.get();
+        }
+    }
+}
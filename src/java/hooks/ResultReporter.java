@@ -0,0 +1,636 @@
+package hooks;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import testrail.APIClient;
+import utils.ConcurrentLongSet;
+import utils.LongLongMap;
+import utils.LongSet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts scenario results to TestRail in the background, so scenarios don't wait for TestRail.
+ *
+ * Each case goes to its run in the case to run index built at startup; results of cases that are not
+ * in the plan are only logged. The others are appended to a buffer of the reporting thread, so
+ * scenarios running in parallel don't contend on a shared queue. A single reporter thread merges the
+ * buffers every 'testrail.reporter.drain.millis' (sooner when a buffer holds a full batch) and groups
+ * the results per run. A run's batch is posted with add_results_for_cases once it holds
+ * 'testrail.reporter.batch.size' results, or when the oldest waiting result is
+ * 'testrail.reporter.flush.millis' old.
+ *
+ * With a ResultJournal, results are journaled and forced to disk when merged, before they are posted,
+ * and acknowledged in the journal once TestRail confirms them. A journal write error is logged and
+ * turns journaling off for the rest of the execution.
+ *
+ * Whether a case has failed before is known from the failed cases loaded at startup and the results
+ * reported since, so no result history is read from TestRail.
+ *
+ * At most 'testrail.reporter.max.in.flight' batches are posted at once and at most
+ * 'testrail.reporter.queue.size' results may wait. The batches of one run are sent one after another,
+ * each once TestRail has answered the previous one, as TestRail keeps the last result posted for a
+ * case. When TestRail falls behind, report() blocks the caller for up to
+ * 'testrail.reporter.offer.timeout.seconds' before the result is dropped (and logged).
+ *
+ * After shutdown(timeout, spillDir) the final flush of close() is bounded: up to
+ * 'testrail.shutdown.max.in.flight' batches are posted at once, results of failing cases first (a
+ * case's results stay in the order they were reported). Results still unconfirmed at the deadline stay
+ * in the journal, or without one are spilled to a new journal in spillDir, for ResultJournal.replay().
+ */
+public class ResultReporter implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ResultReporter.class);
+
+    private static final int QUEUE_SIZE = Integer.getInteger("testrail.reporter.queue.size", 10_000);
+    private static final int BATCH_SIZE = Integer.getInteger("testrail.reporter.batch.size", 100);
+    private static final long FLUSH_MILLIS = Long.getLong("testrail.reporter.flush.millis", 2000L);
+    private static final long DRAIN_MILLIS = Long.getLong("testrail.reporter.drain.millis", 100L);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("testrail.reporter.max.in.flight", 2);
+    private static final long OFFER_TIMEOUT_SECONDS = Long.getLong("testrail.reporter.offer.timeout.seconds", 60L);
+    private static final int SHUTDOWN_MAX_IN_FLIGHT = Integer.getInteger("testrail.shutdown.max.in.flight", 8);
+
+    private static final int FAILED_STATUS = 5;
+
+    // seq is the journal sequence number, 0 until journaled. attachment is uploaded to the result once posted,
+    // then attached is run
+    private record Entry(long seq, long caseID, long runID, int statusID, String comment, Path attachment, Runnable attached) {
+    }
+
+    /**
+     * Results reported by one thread, in order. Only contended while the reporter thread drains it
+     */
+    private static final class Buffer {
+        private Entry[] entries = new Entry[16];
+        private int size;
+
+        synchronized int add(Entry entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+            return size;
+        }
+
+        synchronized int drainTo(List<Entry> target) {
+            int drained = size;
+            for (int i = 0; i < size; i++) {
+                target.add(entries[i]);
+                entries[i] = null;
+            }
+            size = 0;
+            return drained;
+        }
+    }
+
+    // Requests to the reporter thread besides flushes
+    private static final CompletableFuture<Void> WAKE = new CompletableFuture<>();
+    private static final CompletableFuture<Void> CLOSE = new CompletableFuture<>();
+
+    // Completed once the results reported before it are merged, without waiting for TestRail
+    private static final class Merge extends CompletableFuture<Void> {
+    }
+
+    private final APIClient client;
+    private final LongLongMap caseRuns;
+    private final ConcurrentLongSet failedCases;
+
+    private final ThreadLocal<Buffer> buffer = ThreadLocal.withInitial(this::newBuffer);
+    private final Queue<Buffer> buffers = new ConcurrentLinkedQueue<>();
+    private final Semaphore capacity = new Semaphore(Math.max(1, QUEUE_SIZE));
+    private final BlockingQueue<CompletableFuture<Void>> requests = new LinkedBlockingQueue<>();
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+    private final Semaphore inFlight = new Semaphore(Math.max(1, MAX_IN_FLIGHT));
+    // Batches sent or waiting for the previous batch of their run, in the order they were posted
+    private final Map<CompletableFuture<Object>, List<Entry>> posting = Collections.synchronizedMap(new LinkedHashMap<>());
+    // Last batch posted to each run, the next batch of the run is sent once it is answered
+    private final Map<Long, CompletableFuture<Object>> lastPosts = new ConcurrentHashMap<>();
+    private final Queue<long[]> confirmed = new ConcurrentLinkedQueue<>();
+    // Batches TestRail rejected that are not in the journal, spilled at close
+    private final Queue<List<Entry>> rejected = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean closed;
+    // Set by shutdown()
+    private volatile boolean shuttingDown;
+    private volatile long deadline;
+    private volatile Path spillDir;
+    private long shutdownStarted;
+    private long postedAtShutdown;
+    private long failedAtShutdown;
+
+    // Reporter thread only
+    private final Map<Long, List<Entry>> batches = new LinkedHashMap<>();
+    private final List<Entry> drained = new ArrayList<>();
+    private final LongSet failedBefore;
+    private ResultJournal journal;
+    private long oldestWaiting;
+    private int pending;
+    private int spilled;
+
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    /**
+     * @param client:      The APIClient used to post results, shared by all batches
+     * @param caseRuns:    Run of each case of the plan, see TestRailClient.getCaseRunIndex. Not changed
+     *                     afterwards
+     * @param failed:      Cases whose latest status was failed at startup, see TestRailClient.getCaseIDSet.
+     *                     Owned by the reporter afterwards
+     * @param failedCases: Collects cases that had failed before a new result is reported for them
+     * @param journal:     Journal of the results, closed by close(); null for none
+     */
+    public ResultReporter(APIClient client, LongLongMap caseRuns, LongSet failed, ConcurrentLongSet failedCases,
+                          ResultJournal journal) {
+        this.client = client;
+        this.caseRuns = caseRuns;
+        this.failedBefore = failed;
+        this.failedCases = failedCases;
+        this.journal = journal;
+        this.worker = new Thread(this::run, "testrail-reporter");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues a result for the case. Returns at once unless too many results are waiting. Safe to call
+     * from any number of threads
+     *
+     * @param caseID:   TestRail ID of the test case
+     * @param statusID: Status of the result (Passed, failed, ...)
+     * @param comment:  Comment of the result
+     * @return False if the result was not queued
+     */
+    public boolean report(String caseID, String statusID, String comment) {
+        long id;
+        int status;
+        try {
+            id = Long.parseLong(caseID.trim());
+            status = Integer.parseInt(statusID.trim());
+        } catch (NumberFormatException exception) {
+            logger.info(caseID + ": " + exception);
+            return false;
+        }
+        return report(id, status, comment);
+    }
+
+    public boolean report(long caseID, int statusID, String comment) {
+        return report(caseID, statusID, comment, null, null);
+    }
+
+    /**
+     * Same as report, and uploads the file as an attachment of the result once TestRail has it. The
+     * file is deleted after the upload
+     *
+     * @param attachment: File to attach to the result, or null
+     * @param attached:   Run once the file is attached, not if the result or the upload fails; or null
+     */
+    public boolean report(long caseID, int statusID, String comment, Path attachment, Runnable attached) {
+        long runID = caseRuns.get(caseID, 0);
+        if (runID == 0) {
+            unmatched.incrementAndGet();
+            logger.warn("Case " + caseID + " is not in any run of the plan, result not posted");
+            return false;
+        }
+        if (closed) {
+            logger.error("Result of case " + caseID + " reported after shutdown, not sent");
+            dropped.incrementAndGet();
+            return false;
+        }
+        try {
+            if (capacity.tryAcquire(OFFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                if (buffer.get().add(new Entry(0, caseID, runID, statusID, comment, attachment, attached)) >= BATCH_SIZE) {
+                    wake();
+                }
+                return true;
+            }
+            logger.error("TestRail result queue is full, result of case " + caseID + " dropped");
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while queueing result of case " + caseID + ", result dropped");
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Posts all results reported so far (by any thread) and waits until TestRail has answered them
+     */
+    public void flush() throws InterruptedException {
+        if (!worker.isAlive()) {
+            return;
+        }
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        requests.put(flushed);
+        try {
+            flushed.get();
+        } catch (ExecutionException exception) {
+            logger.error("TestRail result flush failed", exception.getCause());
+        }
+    }
+
+    /**
+     * Merges the results reported so far (by any thread), so the failed cases are complete, without
+     * waiting for TestRail
+     */
+    public void merge() throws InterruptedException {
+        if (!worker.isAlive()) {
+            return;
+        }
+        Merge merged = new Merge();
+        requests.put(merged);
+        try {
+            merged.get();
+        } catch (ExecutionException exception) {
+            logger.error("TestRail result merge failed", exception.getCause());
+        }
+    }
+
+    /**
+     * Starts the shutdown: the flush of close() ends at the deadline, full batches wait for it so
+     * failures can go first, and up to 'testrail.shutdown.max.in.flight' batches are posted at once.
+     * Results not confirmed by the deadline are kept in the journal, or spilled to a new journal in
+     * the directory, to be posted by ResultJournal.replay()
+     *
+     * @param timeout:  Time from now the shutdown may take
+     * @param unit:     Unit of timeout
+     * @param spillDir: Directory of the spilled results, used when results are not journaled. Null to drop them
+     */
+    public void shutdown(long timeout, TimeUnit unit, Path spillDir) {
+        if (shuttingDown) {
+            return;
+        }
+        shutdownStarted = System.nanoTime();
+        postedAtShutdown = posted.get();
+        failedAtShutdown = failed.get();
+        deadline = shutdownStarted + unit.toNanos(timeout);
+        this.spillDir = spillDir;
+        shuttingDown = true;
+        if (SHUTDOWN_MAX_IN_FLIGHT > MAX_IN_FLIGHT) {
+            inFlight.release(SHUTDOWN_MAX_IN_FLIGHT - MAX_IN_FLIGHT);
+        }
+    }
+
+    /**
+     * Posts all queued results, until the deadline after shutdown(), stops the reporter thread, closes
+     * the journal and logs a summary. Results reported afterwards are dropped. If the calling thread is
+     * interrupted, it stops waiting and keeps its interrupt status; results not yet posted stay in the journal.
+     */
+    @Override
+    public void close() {
+        try {
+            closeAndWait();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while closing the TestRail reporter, results still queued may not be posted");
+        }
+    }
+
+    private void closeAndWait() throws InterruptedException {
+        if (closed) {
+            return;
+        }
+        if (!shuttingDown) {
+            flush();
+            closed = true;
+            requests.put(CLOSE);
+            worker.join();
+            logger.info("TestRail results posted: " + posted + ", failed to post: " + failed
+                    + ", dropped: " + dropped + ", case not in any run: " + unmatched);
+            return;
+        }
+
+        boolean flushed = false;
+        if (worker.isAlive()) {
+            CompletableFuture<Void> flush = new CompletableFuture<>();
+            requests.put(flush);
+            try {
+                flush.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                flushed = true;
+            } catch (ExecutionException exception) {
+                logger.error("TestRail result flush failed", exception.getCause());
+            } catch (TimeoutException exception) {
+                logger.warn("TestRail result flush did not finish before the shutdown deadline");
+            }
+        }
+        closed = true;
+        requests.put(CLOSE);
+        worker.join();
+
+        logger.info(String.format("TestRail shutdown flush %s in %d ms: %d results sent, %d failed to post, "
+                        + "%d pending (%d spilled); posted in total: %d, failed to post: %d, dropped: %d, case not in any run: %d",
+                flushed ? "done" : "stopped at deadline", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - shutdownStarted),
+                posted.get() - postedAtShutdown, failed.get() - failedAtShutdown, pending, spilled,
+                posted.get(), failed.get(), dropped.get(), unmatched.get()));
+    }
+
+    public long getPostedCount() {
+        return posted.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private Buffer newBuffer() {
+        Buffer created = new Buffer();
+        buffers.add(created);
+        return created;
+    }
+
+    private void wake() {
+        if (wakePending.compareAndSet(false, true)) {
+            requests.offer(WAKE);
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long wait = batches.isEmpty()
+                        ? DRAIN_MILLIS
+                        : Math.min(DRAIN_MILLIS, FLUSH_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestWaiting));
+                CompletableFuture<Void> request = requests.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                if (request == WAKE) {
+                    wakePending.set(false);
+                }
+                drain();
+                acknowledge();
+                if (request == CLOSE) {
+                    spill();
+                    closeJournal();
+                    return;
+                } else if (request instanceof Merge) {
+                    request.complete(null);
+                } else if (request != null && request != WAKE) {
+                    postAll();
+                    CompletableFuture.allOf(posting.keySet().toArray(new CompletableFuture<?>[0]))
+                            .whenComplete((ignored, error) -> request.complete(null));
+                } else if (!batches.isEmpty()
+                        && System.nanoTime() - oldestWaiting >= TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS)) {
+                    postAll();
+                }
+            }
+        } catch (InterruptedException exception) {
+            logger.error("TestRail reporter interrupted, " + batches.values().stream().mapToInt(List::size).sum()
+                    + " results not posted");
+        }
+    }
+
+    // Merges the results of all threads into the batches, journaling them first
+    private void drain() throws InterruptedException {
+        for (Buffer threadBuffer : buffers) {
+            capacity.release(threadBuffer.drainTo(drained));
+        }
+        if (journal != null && !drained.isEmpty()) {
+            try {
+                for (int i = 0; i < drained.size(); i++) {
+                    Entry entry = drained.get(i);
+                    long seq = journal.append(entry.caseID(), entry.runID(), entry.statusID(), entry.comment());
+                    drained.set(i, new Entry(seq, entry.caseID(), entry.runID(), entry.statusID(), entry.comment(), entry.attachment(),
+                            entry.attached()));
+                }
+                journal.sync();
+            } catch (IOException exception) {
+                journalFailed(exception);
+            }
+        }
+        for (Entry entry : drained) {
+            add(entry);
+        }
+        drained.clear();
+    }
+
+    // Journals the results TestRail has confirmed since the last call
+    private void acknowledge() {
+        long[] seqs;
+        while ((seqs = confirmed.poll()) != null) {
+            if (journal != null) {
+                try {
+                    journal.ack(seqs);
+                } catch (IOException exception) {
+                    journalFailed(exception);
+                }
+            }
+        }
+    }
+
+    // Counts the results still unconfirmed at close and spills those not in the journal
+    private void spill() {
+        // Oldest first, so replaying them keeps each case's last result last
+        List<Entry> unsent = new ArrayList<>();
+        rejected.forEach(unsent::addAll);
+        int rejectedCount = unsent.size();
+        posting.values().forEach(unsent::addAll);
+        batches.values().forEach(unsent::addAll);
+        pending = unsent.size() - rejectedCount;
+        unsent.removeIf(entry -> entry.seq() != 0 && journal != null);
+        if (unsent.isEmpty()) {
+            return;
+        }
+        if (spillDir == null) {
+            logger.error(unsent.size() + " TestRail results not sent and not spilled");
+            return;
+        }
+        try (ResultJournal spillJournal = ResultJournal.open(spillDir)) {
+            for (Entry entry : unsent) {
+                spillJournal.append(entry.caseID(), entry.runID(), entry.statusID(), entry.comment());
+            }
+            spilled = unsent.size();
+        } catch (IOException exception) {
+            logger.error("Could not spill " + unsent.size() + " TestRail results to " + spillDir + ": " + exception);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException exception) {
+                journalFailed(exception);
+            }
+        }
+    }
+
+    private void journalFailed(IOException exception) {
+        logger.error("Result journal " + journal.getFile() + " failed, results are no longer journaled: " + exception);
+        journal = null;
+    }
+
+    private void add(Entry entry) throws InterruptedException {
+        long runID = entry.runID();
+        trackFailure(entry);
+
+        if (batches.isEmpty()) {
+            oldestWaiting = System.nanoTime();
+        }
+        List<Entry> batch = batches.computeIfAbsent(runID, id -> new ArrayList<>());
+        batch.add(entry);
+        if (batch.size() >= BATCH_SIZE && !shuttingDown) {
+            batches.remove(runID);
+            post(runID, batch);
+        }
+    }
+
+    // Marks the case as failed at least once if its latest status at startup, or a result reported since, was failed
+    private void trackFailure(Entry entry) {
+        if (failedBefore.contains(entry.caseID()) && failedCases.add(entry.caseID()) && journal != null) {
+            try {
+                journal.failedCase(entry.caseID(), entry.runID());
+            } catch (IOException exception) {
+                journalFailed(exception);
+            }
+        }
+        if (entry.statusID() == FAILED_STATUS) {
+            failedBefore.add(entry.caseID());
+        }
+    }
+
+    private void postAll() throws InterruptedException {
+        // post() puts back what it can't send before the deadline, so take the batches out first
+        List<Map.Entry<Long, List<Entry>>> waiting = new ArrayList<>(batches.entrySet());
+        batches.clear();
+        if (shuttingDown) {
+            waiting = failuresFirst(waiting);
+        }
+        for (Map.Entry<Long, List<Entry>> batch : waiting) {
+            List<Entry> results = batch.getValue();
+            for (int from = 0; from < results.size(); from += BATCH_SIZE) {
+                post(batch.getKey(), new ArrayList<>(results.subList(from, Math.min(results.size(), from + BATCH_SIZE))));
+            }
+        }
+    }
+
+    // Puts the results of the cases failing in a batch before the other results. A case's results stay together and in order
+    private static List<Map.Entry<Long, List<Entry>>> failuresFirst(List<Map.Entry<Long, List<Entry>>> waiting) {
+        List<Map.Entry<Long, List<Entry>>> failures = new ArrayList<>();
+        List<Map.Entry<Long, List<Entry>>> others = new ArrayList<>();
+        for (Map.Entry<Long, List<Entry>> batch : waiting) {
+            LongSet failing = new LongSet();
+            for (Entry entry : batch.getValue()) {
+                if (entry.statusID() == FAILED_STATUS) {
+                    failing.add(entry.caseID());
+                }
+            }
+            List<Entry> runFailures = new ArrayList<>();
+            List<Entry> runOthers = new ArrayList<>();
+            for (Entry entry : batch.getValue()) {
+                (failing.contains(entry.caseID()) ? runFailures : runOthers).add(entry);
+            }
+            if (!runFailures.isEmpty()) {
+                failures.add(Map.entry(batch.getKey(), runFailures));
+            }
+            if (!runOthers.isEmpty()) {
+                others.add(Map.entry(batch.getKey(), runOthers));
+            }
+        }
+        failures.addAll(others);
+        return failures;
+    }
+
+    // Uploads the attachments of the batch to their results, TestRail answers add_results_for_cases with the results in order
+    private CompletableFuture<Void> attach(List<Entry> batch, Object response) {
+        List<CompletableFuture<Object>> uploads = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Path attachment = batch.get(i).attachment();
+            if (attachment == null) {
+                continue;
+            }
+            if (!(response instanceof JSONArray) || ((JSONArray) response).size() <= i) {
+                logger.error("No result ID for case " + batch.get(i).caseID() + ", " + attachment + " not attached");
+                continue;
+            }
+            Object resultID = ((JSONObject) ((JSONArray) response).get(i)).get("id");
+            long caseID = batch.get(i).caseID();
+            Runnable attached = batch.get(i).attached();
+            uploads.add(client.sendPostAsync("add_attachment_to_result/" + resultID, attachment.toString())
+                    .whenComplete((uploaded, error) -> {
+                        if (error != null) {
+                            logger.error("Could not attach " + attachment + " to the result of case " + caseID + ": " + error);
+                        } else if (attached != null) {
+                            attached.run();
+                        }
+                        try {
+                            Files.deleteIfExists(attachment);
+                        } catch (IOException exception) {
+                            logger.debug("Could not delete " + attachment + ": " + exception);
+                        }
+                    }));
+        }
+        // An upload failure does not fail the results
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null);
+    }
+
+    private void post(long runID, List<Entry> batch) throws InterruptedException {
+        JSONArray results = new JSONArray();
+        for (Entry entry : batch) {
+            JSONObject result = new JSONObject();
+            result.put("case_id", entry.caseID());
+            result.put("status_id", entry.statusID());
+            result.put("comment", entry.comment());
+            results.add(result);
+        }
+        JSONObject data = new JSONObject();
+        data.put("results", results);
+
+        // Backpressure: wait here while TestRail is busy with earlier batches, at shutdown no longer than the deadline
+        if (!shuttingDown) {
+            inFlight.acquire();
+        } else if (!inFlight.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            // Left to spill() at close
+            batches.computeIfAbsent(runID, id -> new ArrayList<>()).addAll(batch);
+            return;
+        }
+        // Sent after the previous batch of the run is answered, whether it was posted or not
+        CompletableFuture<Object> previous = lastPosts.getOrDefault(runID, CompletableFuture.completedFuture(null));
+        CompletableFuture<Object> request = previous.handle((response, error) -> null)
+                .thenCompose(ignored -> client.sendPostAsync("add_results_for_cases/" + runID, data))
+                .thenCompose(response -> attach(batch, response).thenApply(ignored -> response));
+        lastPosts.put(runID, request);
+        posting.put(request, batch);
+        request.whenComplete((response, error) -> {
+            inFlight.release();
+            posting.remove(request);
+            lastPosts.remove(runID, request);
+            if (error == null) {
+                posted.addAndGet(batch.size());
+                if (batch.get(0).seq() != 0) {
+                    confirmed.add(batch.stream().mapToLong(Entry::seq).toArray());
+                }
+            } else {
+                failed.addAndGet(batch.size());
+                if (batch.get(0).seq() == 0) {
+                    rejected.add(batch);
+                }
+                logger.error("Could not post " + batch.size() + " results to run " + runID + ": " + error);
+            }
+        });
+    }
+}
@@ -2,6 +2,13 @@ package hooks;
 
 import testrail.APIClient;
 import testrail.APIException;
+import testrail.APIMetrics;
+import testrail.PlanDescriptor;
+import testrail.TestRailClient;
+import testrail.model.Plan;
+import utils.ConcurrentLongSet;
+import utils.LongLongMap;
+import utils.LongSet;
 import utils.PropertyUtils;
 import cucumber.api.Result;
 import cucumber.api.Scenario;
@@ -10,20 +17,28 @@ import cucumber.runtime.ScenarioImpl;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.LongStream;
 
-import static testrail.TestRailRule.getRunIDs;
+import static testrail.TestRailRule.getOrCreatePlan;
 import static testrail.TestRailRule.setApiClient;
 
 public class TestRailHook {
 
     private static final Logger logger = LogManager.getLogger(TestRailHook.class);
-    public static HashSet<String> failedCases = new HashSet<>();
+    // Cases failed at least once, filled by the reporter thread while scenarios run in parallel
+    public static final ConcurrentLongSet failedCases = new ConcurrentLongSet();
     
     // CE test plan details
     public static String PROJECT_ID = PropertyUtils.getProperty("testrail.project.id");
@@ -31,13 +46,46 @@ public class TestRailHook {
     public static String BASE_PLAN_ID = PropertyUtils.getProperty("testrail.baseplan.id");
     public static String DESIRED_RUN_NAMES = PropertyUtils.getProperty("testrail.run.names");
 
-    // IDs of runs of in the test plans
-    private static List<Long> TEST_RUN_IDS = new ArrayList<>();
+    // Directory where the shards of an execution on one host agree on the plan, and the ID of the execution.
+    // The plan is resolved alone if either is empty
+    private static final String PLAN_SHARED_DIR = System.getProperty("testrail.plan.shared.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "testrail-plans").toString());
+    private static final String EXECUTION_ID = System.getProperty("testrail.execution.id", "");
+
+    // IDs of runs of in the test plans, set once before the scenarios start
+    private static volatile List<Long> TEST_RUN_IDS = List.of();
     private static final String TEST_CASE_PASSED_STATUS = "1";
     private static final String TEST_CASE_FAILED_STATUS = "5";
 
+    // Posts results in the background, created once the run IDs are known
+    private static volatile ResultReporter REPORTER;
+    // Completed with the reporter when the plan is ready
+    private static volatile CompletableFuture<ResultReporter> WARM_UP;
+
+    private record EarlyResult(long caseID, int statusID, String comment, Path trace, Runnable attached) {
+    }
+
+    // Results of scenarios ended before the plan was ready, guarded by itself
+    private static final List<EarlyResult> EARLY_RESULTS = new ArrayList<>();
+    // Directory of the result journals, empty to not journal results
+    private static final String JOURNAL_DIR = System.getProperty("testrail.journal.dir", "testrail-journal");
+    // Time the shutdown hook may take to post the last results, and where those not sent by then go
+    private static final long SHUTDOWN_DEADLINE_SECONDS = Long.getLong("testrail.shutdown.deadline.seconds", 60L);
+    private static final String SPILL_DIR = System.getProperty("testrail.shutdown.spill.dir", "testrail-journal");
+
+    // Case whose result carries the full trace of each failure fingerprint, set once the trace is uploaded
+    private static final Map<String, String> TRACE_CASES = new ConcurrentHashMap<>();
+
+    // Feature directories scanned for @TestRailId tags at startup, and whether a tag not matching the plan stops the execution
+    private static final String FEATURE_DIRS = System.getProperty("testrail.features.dirs", "src/test/resources/features");
+    private static final boolean PREFLIGHT_STRICT = Boolean.getBoolean("testrail.preflight.strict");
+    // Case IDs of the scenarios, null until the scan is done
+    private static volatile FeatureTagIndex TAG_INDEX;
+
     /**
-     * Before all: Create plan, if not already created and set test run ids
+     * Before all: Create plan, if not already created and set test run ids. Done on a background thread,
+     * so scenarios start at once; their results wait in memory until the plan is ready. With
+     * 'testrail.preflight.strict' the hook waits for it, so a tag not matching the plan stops the execution
      * After all: mark status of cases as 'Failed' which were fail even once during execution.
      */
     public static void testrailHook() throws Exception {
@@ -45,18 +93,179 @@ public class TestRailHook {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 try {
-                    String[] failedCasesArr = failedCases.toArray(new String[0]);
-                    addResultForCases(failedCasesArr, TEST_CASE_FAILED_STATUS, " Test Case Failed Atleast Once !!!");
+                    CompletableFuture<ResultReporter> warmUp = WARM_UP;
+                    if (warmUp == null)
+                        return;
+                    long started = System.nanoTime();
+                    ResultReporter reporter;
+                    try {
+                        reporter = warmUp.get(SHUTDOWN_DEADLINE_SECONDS, TimeUnit.SECONDS);
+                    } catch (TimeoutException | ExecutionException exception) {
+                        logger.error("TestRail plan not ready, " + earlyResultCount() + " results not reported: " + exception);
+                        return;
+                    }
+                    // Results of the last scenarios first, they may add to the failed cases. The re-marks are
+                    // posted with them, failures first, until the deadline. A re-mark is sent in its run's batch
+                    // after the case's other results, or in a later batch once every earlier batch of the run
+                    // is answered, so it is the case's last result
+                    long left = TimeUnit.SECONDS.toNanos(SHUTDOWN_DEADLINE_SECONDS) - (System.nanoTime() - started);
+                    reporter.shutdown(left, TimeUnit.NANOSECONDS, SPILL_DIR.isBlank() ? null : Paths.get(SPILL_DIR));
+                    reporter.merge();
+                    for (long failedCase : failedCases.toArray()) {
+                        reporter.report(failedCase, Integer.parseInt(TEST_CASE_FAILED_STATUS), " Test Case Failed Atleast Once !!!");
+                    }
+                    reporter.close();
                     logger.info("Cases Marked !!!");
                 } catch (Exception exception) {
                     exception.printStackTrace();
                     logger.debug("---------------- TESTRAIL AFTER HOOK ERROR ----------------\n" + exception);
+                } finally {
+                    APIMetrics.getDefault().logSummary();
                 }
             }
         });
-        // Before hook: Set IDs of child runs of the plan
-        TEST_RUN_IDS.addAll(getRunIDs(PROJECT_ID, NEW_PLAN_NAME, BASE_PLAN_ID, DESIRED_RUN_NAMES));
-        logger.info("TEST_RUN_IDS --->>>" + TEST_RUN_IDS);
+        CompletableFuture<ResultReporter> warmUp = CompletableFuture.supplyAsync(TestRailHook::warmUp, task -> {
+            Thread thread = new Thread(task, "testrail-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        });
+        WARM_UP = warmUp.whenComplete((reporter, error) -> {
+            if (error != null) {
+                logger.error("---------------- TESTRAIL BEFORE HOOK ERROR ----------------", error);
+                logger.error(earlyResultCount() + " results, and those of the next scenarios, not reported");
+            } else {
+                release(reporter);
+            }
+        });
+        if (PREFLIGHT_STRICT) {
+            try {
+                WARM_UP.join();
+            } catch (CompletionException exception) {
+                throw exception.getCause() instanceof Exception ? (Exception) exception.getCause() : exception;
+            }
+        }
+    }
+
+    /**
+     * Creates the plan if needed and returns its plan and run IDs
+     *
+     * @param client: The APIClient used to make the API requests
+     */
+    private static PlanDescriptor loadPlan(APIClient client) throws IOException, APIException {
+        Plan plan = Plan.fromJSON(getOrCreatePlan(client, PROJECT_ID, NEW_PLAN_NAME, BASE_PLAN_ID, DESIRED_RUN_NAMES));
+        return new PlanDescriptor(plan.id(), plan.runIds());
+    }
+
+    /**
+     * Creates the plan if needed, loads what the results are posted with and starts the ResultReporter
+     */
+    private static ResultReporter warmUp() {
+        try {
+            // Tags of the feature files are read while TestRail is queried
+            CompletableFuture<FeatureTagIndex> tagScan = CompletableFuture.supplyAsync(TestRailHook::scanFeatures);
+
+            // Before hook: Set IDs of child runs of the plan, resolved once for all shards of the execution
+            long started = System.nanoTime();
+            APIClient client = setApiClient();
+            PlanDescriptor plan = PLAN_SHARED_DIR.isBlank() || EXECUTION_ID.isBlank()
+                    ? loadPlan(client)
+                    : PlanDescriptor.shared(Paths.get(PLAN_SHARED_DIR), EXECUTION_ID, NEW_PLAN_NAME, BASE_PLAN_ID, client, () -> loadPlan(client));
+            TEST_RUN_IDS = Arrays.stream(plan.getRunIDs()).boxed().toList();
+            logger.info("TEST_RUN_IDS --->>>" + TEST_RUN_IDS);
+
+            // The run of every case, so each result is posted straight to its run, and the cases that are
+            // failed now, so failures need not be looked up in the result history of each case
+            TestRailClient testRail = new TestRailClient(client);
+            LongLongMap caseRuns = testRail.getCaseRunIndex(TEST_RUN_IDS);
+            LongSet failed = testRail.getCaseIDSet(TEST_RUN_IDS, TEST_CASE_FAILED_STATUS);
+            logger.info(caseRuns.size() + " cases found in " + TEST_RUN_IDS.size() + " runs, " + failed.size() + " failed");
+
+            // Preflight: every tagged case must be in the plan
+            FeatureTagIndex tagIndex = tagScan.join();
+            if (tagIndex != null) {
+                tagIndex.validate(caseRuns, PREFLIGHT_STRICT);
+                TAG_INDEX = tagIndex;
+            }
+            ResultReporter reporter = new ResultReporter(client, caseRuns, failed, failedCases, openJournal(client));
+            logger.info("TestRail plan ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+            return reporter;
+        } catch (RuntimeException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new CompletionException(exception);
+        }
+    }
+
+    /**
+     * Hands the results of the scenarios that ended before the plan was ready to the reporter, in order,
+     * and the next ones from then on
+     */
+    private static void release(ResultReporter reporter) {
+        synchronized (EARLY_RESULTS) {
+            if (!EARLY_RESULTS.isEmpty()) {
+                logger.info("Reporting " + EARLY_RESULTS.size() + " results of scenarios ended before the plan was ready");
+            }
+            for (EarlyResult result : EARLY_RESULTS) {
+                reporter.report(result.caseID(), result.statusID(), result.comment(), result.trace(), result.attached());
+            }
+            EARLY_RESULTS.clear();
+            REPORTER = reporter;
+        }
+    }
+
+    private static int earlyResultCount() {
+        synchronized (EARLY_RESULTS) {
+            return EARLY_RESULTS.size();
+        }
+    }
+
+    /**
+     * Indexes the @TestRailId tags of the feature files in 'testrail.features.dirs' (comma separated)
+     *
+     * @return The index, or null if the files could not be read
+     */
+    private static FeatureTagIndex scanFeatures() {
+        List<Path> dirs = new ArrayList<>();
+        for (String dir : FEATURE_DIRS.split(",")) {
+            if (!dir.isBlank()) {
+                dirs.add(Paths.get(dir.trim()));
+            }
+        }
+        try {
+            return FeatureTagIndex.scan(dirs);
+        } catch (IOException exception) {
+            logger.error("Could not scan the feature files, tags are read per scenario: " + exception);
+            return null;
+        }
+    }
+
+    /**
+     * Posts the results left in the journals of executions that died and spilled by executions that
+     * ran out of time, then opens the journal of this execution. Results are not journaled if
+     * 'testrail.journal.dir' is empty or the journal can't be created
+     *
+     * @param client: The APIClient used to post the left results
+     * @return Journal of this execution, or null
+     */
+    private static ResultJournal openJournal(APIClient client) {
+        for (String left : new LinkedHashSet<>(Arrays.asList(JOURNAL_DIR, SPILL_DIR))) {
+            if (!left.isBlank()) {
+                int replayed = ResultJournal.replay(Paths.get(left), client, Integer.parseInt(TEST_CASE_FAILED_STATUS), " Test Case Failed Atleast Once !!!");
+                if (replayed > 0) {
+                    logger.info(replayed + " results of earlier executions posted from " + left);
+                }
+            }
+        }
+        if (JOURNAL_DIR.isBlank()) {
+            return null;
+        }
+        Path dir = Paths.get(JOURNAL_DIR);
+        try {
+            return ResultJournal.open(dir);
+        } catch (IOException exception) {
+            logger.error("Could not create result journal in " + dir + ", results are not journaled: " + exception);
+            return null;
+        }
     }
 
     /**
@@ -70,77 +279,106 @@ public class TestRailHook {
         // Get passed or failed status of scenatio
         String status_id = scenario.getStatus().equals(Result.Type.PASSED) ? TEST_CASE_PASSED_STATUS : TEST_CASE_FAILED_STATUS;
 
+        // test case ids of scenario, from the index built at startup
+        long[] testRailIds = TAG_INDEX == null ? null : TAG_INDEX.getCaseIDs(scenario.getUri(), scenario.getLines());
+        if (testRailIds == null) {
+            testRailIds = extractTestRailIds(scenario);
+        }
+
         // Set comment for test case
         StringBuilder status_message = new StringBuilder();
+        Path trace = null;
+        Runnable traceAttached = null;
         if (status_id.equals(TEST_CASE_PASSED_STATUS)) {
             status_message.append(scenario.getName()).append(": Test has passed ");
         } else {
-            // if scenario failed, error message and stacktrace is set as comment in the testrail case
+            // if scenario failed, a short summary of the error is set as comment in the testrail case,
+            // the full stacktrace is attached until one upload per distinct failure has succeeded
             status_message.append(scenario.getName()).append(": Test has failed! -- ");
             Throwable error = logError(scenario);
-            if (error != null) {
-                status_message.append(error.getMessage()).append("\n ");
-                for (StackTraceElement stackTraceElement : error.getStackTrace()) {
-                    status_message.append(stackTraceElement.toString()).append("\n");
+            if (error != null && testRailIds != null && testRailIds.length > 0) {
+                FailureFingerprint fingerprint = FailureFingerprint.of(error);
+                status_message.append(fingerprint.summary()).append("Failure ").append(fingerprint.getId());
+                String tracedCase = TRACE_CASES.get(fingerprint.getId());
+                if (tracedCase == null) {
+                    trace = writeTrace(fingerprint);
+                }
+                if (trace != null) {
+                    String caseID = String.valueOf(testRailIds[0]);
+                    traceAttached = () -> TRACE_CASES.putIfAbsent(fingerprint.getId(), caseID);
+                    status_message.append(", full trace attached");
+                } else if (tracedCase != null) {
+                    status_message.append(", full trace attached to the first result of C").append(tracedCase);
                 }
             }
         }
 
-        // exctract test case ids from scenario
-        String[] testRailIds = extractTestRailIds(scenario);
-
         // if test case ids are present on scenario, find them in the runs and mark their status
         if (testRailIds != null) {
-            addResultForCases(testRailIds, status_id, status_message.toString());
+            addResultForCases(testRailIds, status_id, status_message.toString(), trace, traceAttached);
+        }
+    }
+
+    private static Path writeTrace(FailureFingerprint fingerprint) {
+        try {
+            return fingerprint.writeTrace();
+        } catch (IOException exception) {
+            logger.error("Could not write the trace of failure " + fingerprint.getId() + ": " + exception);
+            return null;
         }
     }
 
     /**
-     * Mark result status of the test case ids related to scenario
+     * Queue results for the test case ids related to scenario, they are posted by the ResultReporter
      *
      * @param testRailIds:    Test case IDs related to scenario
      * @param status_id:      Status of scenario: Passed or failed
      * @param status_message: Comment for test case status
+     * @param trace:          File attached to the result of the first case, or null
+     * @param traceAttached:  Run once the trace is attached
      */
-    private static void addResultForCases(String[] testRailIds, String status_id, String status_message) {
-        for (String testRailId : testRailIds) {
-            // Initialize APIClient with testrail credentials
-            APIClient client = setApiClient();
-
-            Map data = new HashMap();
-            data.put("status_id", status_id);
-            data.put("comment", status_message);
-            for (Long testRunId : TEST_RUN_IDS) {
-                try {
-                    // If cases id failed even once before, add it to failed cases set
-                    if (getResultsOfCase(client, testRunId, testRailId).contains(5L))
-                        failedCases.add(testRailId);
-
-                    // add result for the test case
-                    String uri = "add_result_for_case/" + testRunId + "/" + testRailId + "";
-                    client.sendPost(uri, data);
-                    break;
-                } catch (APIException | IOException exception) {
-                    exception.printStackTrace();
-                    logger.info(testRunId + "/" + testRailId + ": " + exception);
+    private static void addResultForCases(long[] testRailIds, String status_id, String status_message, Path trace,
+                                          Runnable traceAttached) {
+        int status = Integer.parseInt(status_id);
+        ResultReporter reporter = REPORTER;
+        if (reporter == null) {
+            synchronized (EARLY_RESULTS) {
+                reporter = REPORTER;
+                if (reporter == null) {
+                    if (WARM_UP == null || WARM_UP.isCompletedExceptionally()) {
+                        logger.info("TestRail hook not initialized, results not reported for " + Arrays.toString(testRailIds));
+                        return;
+                    }
+                    // Plan not ready yet, release() reports them
+                    for (int i = 0; i < testRailIds.length; i++) {
+                        EARLY_RESULTS.add(new EarlyResult(testRailIds[i], status, status_message,
+                                i == 0 ? trace : null, i == 0 ? traceAttached : null));
+                    }
+                    return;
                 }
             }
         }
+        for (int i = 0; i < testRailIds.length; i++) {
+            reporter.report(testRailIds[i], status, status_message, i == 0 ? trace : null, i == 0 ? traceAttached : null);
+        }
     }
 
     /**
-     * Extract test case ids from the scenario tag @TestRailId-### where ### is the test case id in the testrail
+     * Extract test case ids from the scenario tags @TestRailId-### where ### is the test case id in the testrail.
+     * Used for scenarios not found in the index built at startup, all tags are read the way the index reads them
      *
      * @param scenario: Current executed scenario
-     * @return Testrail IDs of the test cases related to scenario
+     * @return Testrail IDs of the test cases related to scenario, null if it has none
      */
-    private String[] extractTestRailIds(Scenario scenario) {
+    private long[] extractTestRailIds(Scenario scenario) {
+        LongStream.Builder caseIDs = LongStream.builder();
         for (String tag : scenario.getSourceTagNames()) {
-            if (tag.contains("TestRailId-")) {
-                return tag.split("-")[1].split(",");
+            for (long caseID : FeatureTagIndex.parseIds(tag, id -> logger.info(tag + ": malformed case ID " + id))) {
+                caseIDs.add(caseID);
             }
         }
-        return null;
+        long[] ids = caseIDs.build().distinct().toArray();
+        return ids.length == 0 ? null : ids;
     }
 
     /**
@@ -161,26 +399,4 @@ public class TestRailHook {
         }
         return null;
     }
-
-    /**
-     * Get previous results of the test case
-     *
-     * @param client:     The APIClient used to make the API requests. Should be initialized prior to calling
-     *                    this function.
-     * @param runID:      Testrail ID of the run in which test case is present
-     * @param testCaseID: Testrail ID of the test case of which results are required
-     * @return List of all the statuses of the test case (Passed, failed or untested)
-     * @throws IOException
-     * @throws APIException
-     */
-    private static List<Long> getResultsOfCase(APIClient client, Long runID, String testCaseID) throws IOException, APIException {
-        String uri = "get_results_for_case/" + runID + "/" + testCaseID;
-        JSONArray response = (JSONArray) client.sendGet(uri);
-        List<Long> results = new ArrayList<>();
-        for (int i = 0; i < response.size(); ++i) {
-            JSONObject result = (JSONObject) response.get(i);
-            results.add((Long) result.get("status_id"));
-        }
-        return results;
-    }
 }
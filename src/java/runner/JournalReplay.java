@@ -0,0 +1,107 @@
+package runner;
+
+import hooks.ResultJournal;
+import hooks.ResultReporter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import testrail.APIClient;
+import testrail.TestRailClient;
+import testrail.model.Plan;
+import testrail.stub.TestRailStubServer;
+import utils.ConcurrentLongSet;
+import utils.LongLongMap;
+import utils.LongSet;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Replay of a result journal with a torn tail against an in-process TestRailStubServer: the results
+ * of a journal are left unposted, a torn record is appended as a crash in the middle of a write
+ * would, and the journal is replayed while TestRail fails part of the posts, then again until it is
+ * gone. Every result must end up in TestRail exactly once: a replay must see what the replays
+ * before it acknowledged.
+ *
+ * java runner.JournalReplay [results] [error rate]
+ * Exits with 1 if a result is missing or posted twice.
+ */
+public class JournalReplay {
+    private static final Logger logger = LogManager.getLogger(JournalReplay.class);
+
+    private static final int PASSED = 1;
+    private static final int FAILED = 5;
+
+    public static void main(String[] args) throws Exception {
+        int resultCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        double errorRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+
+        TestRailStubServer stub = new TestRailStubServer().start();
+        long suite = stub.seedSuite(1, "Journal", 10, resultCount);
+        JSONObject planJSON = stub.seedPlan(1, "Journal plan", suite);
+        APIClient client = new APIClient(stub.getUrl());
+        TestRailClient testRail = new TestRailClient(client);
+        long runID = Plan.fromJSON(planJSON).runIds()[0];
+        LongLongMap caseRuns = testRail.getCaseRunIndex(List.of(runID));
+        long[] caseIDs = caseRuns.keys();
+
+        // Nothing gets posted, so every result stays unacknowledged in the journal
+        Path dir = Files.createTempDirectory("testrail-journal-replay");
+        stub.setErrorRate(1.0);
+        ResultReporter reporter = new ResultReporter(client, caseRuns, new LongSet(), new ConcurrentLongSet(),
+                ResultJournal.open(dir));
+        for (long caseID : caseIDs) {
+            reporter.report(caseID, PASSED, "Journaled");
+        }
+        reporter.close();
+
+        Path journal;
+        try (Stream<Path> journals = Files.list(dir)) {
+            journal = journals.findFirst().orElseThrow();
+        }
+        // The length and type of a record whose payload never made it to disk
+        ByteBuffer torn = ByteBuffer.allocate(5).putInt(29).put((byte) 1);
+        torn.flip();
+        Files.write(journal, torn.array(), StandardOpenOption.APPEND);
+
+        stub.setErrorRate(errorRate);
+        int replays = 0;
+        int posted = 0;
+        while (Files.exists(journal) && replays < 50) {
+            posted += ResultJournal.replay(dir, client, FAILED, "Failed at least once");
+            replays++;
+            stub.setErrorRate(replays < 3 ? errorRate : 0);
+        }
+        stub.setErrorRate(0);
+
+        int errors = 0;
+        if (replays < 2) {
+            logger.warn("The first replay posted everything, the torn tail was not replayed twice; run again");
+        }
+        if (Files.exists(journal)) {
+            logger.error("Journal still there after " + replays + " replays");
+            errors++;
+        }
+        if (posted != caseIDs.length) {
+            logger.error("Replays posted " + posted + " results, expected " + caseIDs.length);
+            errors++;
+        }
+        for (long caseID : caseIDs) {
+            int results = testRail.getResultStatuses(runID, caseID).length;
+            if (results != 1) {
+                logger.error("Case " + caseID + " has " + results + " results, expected 1");
+                errors++;
+            }
+        }
+        stub.stop();
+        Files.deleteIfExists(dir);
+
+        logger.info(String.format("%d journaled results replayed in %d replays, %d posted, %d errors",
+                caseIDs.length, replays, posted, errors));
+        System.exit(errors == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,159 @@
+package runner;
+
+import hooks.ResultReporter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import testrail.APIClient;
+import testrail.TestRailClient;
+import testrail.model.Plan;
+import testrail.model.Test;
+import testrail.stub.TestRailStubServer;
+import utils.ConcurrentLongSet;
+import utils.LongLongMap;
+import utils.LongSet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stress run of the result reporting used by TestRailHook: many threads complete scenarios at once
+ * against an in-process TestRailStubServer, then the reporter is shut down like the hook's shutdown
+ * hook does, re-marking the cases failed at least once. The failed cases and the final status of
+ * every case are checked: failed for the re-marked cases, the last reported one for the others.
+ *
+ * java runner.ReporterStress [threads] [scenarios per thread] [cases] [latency millis]
+ * Exits with 1 if any result is missing or wrong.
+ */
+public class ReporterStress {
+    private static final Logger logger = LogManager.getLogger(ReporterStress.class);
+
+    private static final int PASSED = 1;
+    private static final int FAILED = 5;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int scenarios = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int caseCount = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 20;
+
+        TestRailStubServer stub = new TestRailStubServer().start();
+        long firstSuite = stub.seedSuite(1, "Stress A", 50, caseCount / 2);
+        long secondSuite = stub.seedSuite(1, "Stress B", 50, caseCount - caseCount / 2);
+        JSONObject planJSON = stub.seedPlan(1, "Stress plan", firstSuite, secondSuite);
+
+        APIClient client = new APIClient(stub.getUrl());
+        TestRailClient testRail = new TestRailClient(client);
+        List<Long> runIDs = Arrays.stream(Plan.fromJSON(planJSON).runIds()).boxed().toList();
+        LongLongMap caseRuns = testRail.getCaseRunIndex(runIDs);
+        long[] caseIDs = caseRuns.keys();
+
+        // Every 7th case failed in an earlier execution
+        LongSet failedAtStart = new LongSet();
+        for (int i = 0; i < caseIDs.length; i += 7) {
+            stub.seedResult(caseRuns.get(caseIDs[i], 0), caseIDs[i], FAILED);
+            failedAtStart.add(caseIDs[i]);
+        }
+        stub.setLatency(latency, latency / 2);
+
+        ConcurrentLongSet failedCases = new ConcurrentLongSet();
+        ResultReporter reporter = new ResultReporter(client, caseRuns, testRail.getCaseIDSet(runIDs, String.valueOf(FAILED)),
+                failedCases, null);
+
+        // Each thread owns the cases i % threads == thread, so the expected outcome per case is known
+        long[] lastStatus = new long[caseIDs.length];
+        LongSet[] expectedFailed = new LongSet[threads];
+        AtomicLong reported = new AtomicLong();
+        AtomicLong slowest = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            expectedFailed[t] = new LongSet();
+            new Thread(() -> {
+                Random random = new Random(thread);
+                LongSet failedBefore = new LongSet();
+                try {
+                    start.await();
+                    for (int s = 0; s < scenarios; s++) {
+                        int index = thread + threads * random.nextInt(Math.max(1, (caseIDs.length - thread + threads - 1) / threads));
+                        if (index >= caseIDs.length) {
+                            continue;
+                        }
+                        long caseID = caseIDs[index];
+                        int status = random.nextInt(5) == 0 ? FAILED : PASSED;
+                        if (failedAtStart.contains(caseID) || failedBefore.contains(caseID)) {
+                            expectedFailed[thread].add(caseID);
+                        }
+                        if (status == FAILED) {
+                            failedBefore.add(caseID);
+                        }
+                        long began = System.nanoTime();
+                        if (reporter.report(caseID, status, "Stress scenario " + thread + "/" + s)) {
+                            reported.incrementAndGet();
+                        }
+                        slowest.accumulateAndGet(System.nanoTime() - began, Math::max);
+                        lastStatus[index] = status;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-" + t).start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        long scenariosDone = System.nanoTime();
+        // As TestRailHook's shutdown hook: no flush first, the re-marks are posted with the last batches
+        reporter.shutdown(60, TimeUnit.SECONDS, null);
+        reporter.merge();
+        long[] remarked = failedCases.toArray();
+        for (long caseID : remarked) {
+            reporter.report(caseID, FAILED, "Failed at least once");
+        }
+        reporter.close();
+        long flushed = System.nanoTime();
+
+        int errors = 0;
+        if (reporter.getPostedCount() != reported.get() + remarked.length) {
+            logger.error("Posted " + reporter.getPostedCount() + " of " + (reported.get() + remarked.length) + " results");
+            errors++;
+        }
+        LongSet expected = new LongSet();
+        for (LongSet threadFailed : expectedFailed) {
+            expected.addAll(threadFailed.toArray());
+        }
+        if (!Arrays.equals(expected.toArray(), failedCases.toArray())) {
+            logger.error("Failed cases differ: expected " + expected.size() + ", got " + failedCases.size());
+            errors++;
+        }
+        LongLongMap statuses = new LongLongMap(caseIDs.length);
+        for (long runID : runIDs) {
+            try (Stream<Test> tests = testRail.streamTests(runID)) {
+                tests.forEach(test -> statuses.put(test.caseId(), test.statusId()));
+            }
+        }
+        for (int i = 0; i < caseIDs.length; i++) {
+            long expectedStatus = expected.contains(caseIDs[i]) ? FAILED : lastStatus[i];
+            if (expectedStatus != 0 && statuses.get(caseIDs[i], 0) != expectedStatus) {
+                logger.error("Case " + caseIDs[i] + " has status " + statuses.get(caseIDs[i], 0) + ", expected " + expectedStatus);
+                errors++;
+            }
+        }
+        stub.stop();
+
+        logger.info(String.format("%d results from %d threads: scenarios done in %d ms (slowest report %.2f ms), "
+                        + "all posted after %d ms, %d stub requests, %d errors",
+                reported.get(), threads, (scenariosDone - began) / 1_000_000, slowest.get() / 1e6,
+                (flushed - began) / 1_000_000, stub.getRequestCount(), errors));
+        System.exit(errors == 0 ? 0 : 1);
+    }
+}
@@ -13,15 +13,43 @@ package testrail;
 
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class APIClient {
+    private static final int ATTACHMENT_PARALLELISM = Math.max(1, Integer.getInteger("testrail.attachment.parallelism", 4));
+
     private String m_user;
     private String m_password;
     private String m_url;
@@ -79,12 +107,131 @@ public class APIClient {
      */
     public Object sendGet(String uri, String data)
             throws MalformedURLException, IOException, APIException {
-        return this.sendRequest("GET", uri, data);
+        if (uri.startsWith("get_attachment/")) {
+            return await(this.downloadAttachmentAsync(uri, Paths.get(data)));
+        }
+        return await(this.sendGetAsync(uri));
     }
 
     public Object sendGet(String uri)
             throws MalformedURLException, IOException, APIException {
-        return this.sendRequest("GET", uri, null);
+        return await(this.sendGetAsync(uri));
+    }
+
+    /**
+     * Send Get Async
+     *
+     * Same as sendGet, but returns immediately. The returned future is
+     * completed with the parsed JSON response, or exceptionally with an
+     * APIException/IOException. The request goes through the shared
+     * keep-alive transport, so connections are reused across calls.
+     *
+     * Plans, suites and sections are answered from the APIResponseCache
+     * when present. Identical lookups issued while one is in flight share
+     * its response (see SingleFlight).
+     */
+    public CompletableFuture<Object> sendGetAsync(String uri) {
+        String key = this.m_url + uri;
+        if (!SingleFlight.isCoalesced(uri)) {
+            return this.sendAsync("GET", uri, null);
+        }
+        if (!APIResponseCache.isCacheable(uri)) {
+            return SingleFlight.getDefault().execute(key, () -> this.sendAsync("GET", uri, null));
+        }
+        APIResponseCache cache = APIResponseCache.getDefault();
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return SingleFlight.getDefault().execute(key, () -> {
+            long generation = cache.generation();
+            return this.sendAsync("GET", uri, null).thenApply(result -> {
+                cache.put(key, result, generation);
+                return result;
+            });
+        });
+    }
+
+    /**
+     * Send Get Stream
+     *
+     * Issues GET requests for a bulk API method (e.g. get_plans/1,
+     * get_cases/1&suite_id=2) and returns all elements of all pages as a
+     * lazy stream. Pages are requested as the stream is consumed, with the
+     * next page prefetched in the background; short-circuiting operations
+     * such as findFirst stop paging early. Closing the stream abandons
+     * the prefetched page.
+     *
+     * Failures surface as UncheckedIOException or UncheckedAPIException
+     * while the stream is consumed.
+     */
+    public Stream<JSONObject> sendGetStream(String uri) {
+        PagedIterator pages = new PagedIterator(uri, this::sendGetAsync);
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pages::cancel);
+    }
+
+    public Iterator<JSONObject> sendGetIterator(String uri) {
+        return new PagedIterator(uri, this::sendGetAsync);
+    }
+
+    /**
+     * Send Get Values
+     *
+     * Issues a GET request for an API method returning a list (e.g.
+     * get_tests/1) and hands the value of 'keyName' of every element to
+     * the visitor while the response is being read. The JSONObject tree
+     * of the response is never built, which keeps large lists cheap.
+     *
+     * Arguments:
+     *
+     * uri                  The API method to call including parameters
+     *                      (e.g. get_tests/1)
+     * keyName              The key to read from each element (e.g. case_id)
+     * visitor              Called with each value, in response order
+     *
+     * Paginated responses are followed through all pages.
+     */
+    public void sendGetValues(String uri, String keyName, Consumer<Object> visitor)
+            throws MalformedURLException, IOException, APIException {
+        await(this.sendGetValuesAsync(uri, keyName, visitor));
+    }
+
+    public CompletableFuture<Void> sendGetValuesAsync(String uri, String keyName, Consumer<Object> visitor) {
+        return this.sendGetRowsAsync(uri, List.of(keyName), row -> {
+            if (row[0] != null) {
+                visitor.accept(row[0]);
+            }
+        });
+    }
+
+    /**
+     * Send Get Rows Async
+     *
+     * Same as sendGetValuesAsync for several keys of every element: the
+     * visitor gets one array per element with the values of the keys in
+     * keyNames order, null for a key the element does not have. One
+     * response gives e.g. both case_id and status_id of every test.
+     */
+    public CompletableFuture<Void> sendGetRowsAsync(String uri, List<String> keyNames, Consumer<Object[]> visitor) {
+        // The visitor gets a page's rows once the page is read completely, so a retried page is not visited twice
+        return this.<FieldVisitorHandler>sendAsync("GET", uri, null, () -> new FieldVisitorHandler(keyNames))
+                .thenCompose(page -> {
+                    page.getRows().forEach(visitor);
+                    return page.getNextLink() == null
+                            ? CompletableFuture.completedFuture(null)
+                            : this.sendGetRowsAsync(toApiMethod(page.getNextLink()), keyNames, visitor);
+                });
+    }
+
+    /**
+     * Converts a page link as returned in '_links' (e.g.
+     * /api/v2/get_cases/1&limit=250&offset=250) to an API method.
+     */
+    static String toApiMethod(String link) {
+        int start = link.indexOf("/api/v2/");
+        return start < 0 ? link : link.substring(start + "/api/v2/".length());
     }
 
     /**
@@ -109,136 +256,286 @@ public class APIClient {
      */
     public Object sendPost(String uri, Object data)
             throws MalformedURLException, IOException, APIException {
-        return this.sendRequest("POST", uri, data);
+        if (uri.startsWith("add_attachment")) {
+            return await(this.sendAttachmentAsync(uri, Paths.get((String) data)));
+        }
+        return await(this.sendPostAsync(uri, data));
     }
 
-    private Object sendRequest(String method, String uri, Object data)
-            throws MalformedURLException, IOException, APIException {
-        URL url = new URL(this.m_url + uri);
-        // Create the connection object and set the required HTTP method
-        // (GET/POST) and headers (content type and basic auth).
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    /**
+     * Send POST Async
+     *
+     * Same as sendPost, but returns immediately with a future of the
+     * parsed JSON response. Attachments are sent with
+     * sendAttachmentAsync instead.
+     */
+    public CompletableFuture<Object> sendPostAsync(String uri, Object data) {
+        if (uri.startsWith("add_attachment")) {
+            return this.sendAttachmentAsync(uri, Paths.get((String) data));
+        }
+        return this.sendAsync("POST", uri, data)
+                .whenComplete((result, error) -> {
+                    APIResponseCache.getDefault().invalidate(this.m_url, uri);
+                    SingleFlight.getDefault().invalidate(this.m_url, uri);
+                });
+    }
 
-        String auth = getAuthorization(this.m_user, this.m_password);
-        conn.addRequestProperty("Authorization", "Basic " + auth);
+    /**
+     * Send Attachment Async
+     *
+     * Uploads a file as multipart/form-data to an add_attachment method
+     * (e.g. add_attachment_to_result/1). The file is streamed from disk
+     * through a FileChannel with a known Content-Length and is never
+     * held in memory; the file is opened and closed by the transport.
+     *
+     * Returns a future of the parsed JSON response (the attachment id).
+     */
+    public CompletableFuture<Object> sendAttachmentAsync(String uri, Path file) {
+        String boundary = "TestRailAPIAttachmentBoundary" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String fileName = file.getFileName().toString().replace("\"", "\\\"");
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"attachment\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+
+        HttpRequest request;
+        try {
+            request = requestBuilder(uri, "multipart/form-data; boundary=" + boundary)
+                    .POST(HttpRequest.BodyPublishers.concat(
+                            HttpRequest.BodyPublishers.ofByteArray(head),
+                            HttpRequest.BodyPublishers.ofFile(file),
+                            HttpRequest.BodyPublishers.ofByteArray(tail)))
+                    .build();
+        } catch (IllegalArgumentException | FileNotFoundException e) {
+            return failed(e instanceof FileNotFoundException ? (IOException) e : new MalformedURLException(e.getMessage()));
+        }
+        return this.execute(uri, true, request, HttpResponse.BodyHandlers.ofInputStream(), this::decodeJson);
+    }
 
-        if (method.equals("POST")) {
-            conn.setRequestMethod("POST");
-            // Add the POST arguments, if any. We just serialize the passed
-            // data object (i.e. a dictionary) and then add it to the
-            // request body.
-            if (data != null) {
-                if (uri.startsWith("add_attachment"))   // add_attachment API requests
-                {
-                    String boundary = "TestRailAPIAttachmentBoundary"; //Can be any random string
-                    File uploadFile = new File((String) data);
-
-                    conn.setDoOutput(true);
-                    conn.addRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-
-                    OutputStream ostreamBody = conn.getOutputStream();
-                    BufferedWriter bodyWriter = new BufferedWriter(new OutputStreamWriter(ostreamBody));
-
-                    bodyWriter.write("\n\n--" + boundary + "\r\n");
-                    bodyWriter.write("Content-Disposition: form-data; name=\"attachment\"; filename=\""
-                            + uploadFile.getName() + "\"");
-                    bodyWriter.write("\r\n\r\n");
-                    bodyWriter.flush();
-
-                    //Read file into request
-                    InputStream istreamFile = new FileInputStream(uploadFile);
-                    int bytesRead;
-                    byte[] dataBuffer = new byte[1024];
-                    while ((bytesRead = istreamFile.read(dataBuffer)) != -1) {
-                        ostreamBody.write(dataBuffer, 0, bytesRead);
+    /**
+     * Upload Attachments
+     *
+     * Uploads several files to the same add_attachment method, running at
+     * most 'testrail.attachment.parallelism' uploads at a time. Returns
+     * the responses in the order of the files; fails with the first
+     * failed upload after all uploads have finished.
+     */
+    public List<Object> uploadAttachments(String uri, List<Path> files)
+            throws IOException, APIException {
+        return await(this.uploadAttachmentsAsync(uri, files));
+    }
+
+    public CompletableFuture<List<Object>> uploadAttachmentsAsync(String uri, List<Path> files) {
+        List<CompletableFuture<Object>> uploads = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            uploads.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(ATTACHMENT_PARALLELISM, files.size());
+        for (int i = 0; i < workers; i++) {
+            this.uploadNext(uri, files, uploads, next);
+        }
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    List<Object> results = new ArrayList<>(uploads.size());
+                    for (CompletableFuture<Object> upload : uploads) {
+                        results.add(upload.join());
                     }
+                    return results;
+                });
+    }
 
-                    ostreamBody.flush();
-
-                    //end of attachment, add boundary
-                    bodyWriter.write("\r\n--" + boundary + "--\r\n");
-                    bodyWriter.flush();
-
-                    //Close streams
-                    istreamFile.close();
-                    ostreamBody.close();
-                    bodyWriter.close();
-                } else    // Not an attachment
-                {
-                    conn.addRequestProperty("Content-Type", "application/json");
-                    byte[] block = JSONValue.toJSONString(data).
-                            getBytes("UTF-8");
-
-                    conn.setDoOutput(true);
-                    OutputStream ostream = conn.getOutputStream();
-                    ostream.write(block);
-                    ostream.close();
-                }
+    // Each worker takes the next file when its previous upload finished
+    private void uploadNext(String uri, List<Path> files, List<CompletableFuture<Object>> uploads, AtomicInteger next) {
+        int index = next.getAndIncrement();
+        if (index >= files.size()) {
+            return;
+        }
+        this.sendAttachmentAsync(uri, files.get(index)).whenComplete((result, error) -> {
+            if (error != null) {
+                uploads.get(index).completeExceptionally(error);
+            } else {
+                uploads.get(index).complete(result);
             }
-        } else    // GET request
-        {
-            conn.addRequestProperty("Content-Type", "application/json");
+            this.uploadNext(uri, files, uploads, next);
+        });
+    }
+
+    /**
+     * Download Attachment Async
+     *
+     * Streams the attachment of a get_attachment method (e.g.
+     * get_attachment/1) straight into the target file. Returns a future
+     * of the target path as String, like sendGet.
+     */
+    public CompletableFuture<Object> downloadAttachmentAsync(String uri, Path target) {
+        HttpRequest request;
+        try {
+            request = requestBuilder(uri, "application/json").GET().build();
+        } catch (IllegalArgumentException e) {
+            return failed(new MalformedURLException(e.getMessage()));
         }
+        HttpResponse.BodyHandler<Object> toFileOrError = info -> info.statusCode() == 200
+                ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofFile(target), Path::toString)
+                : HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), body -> body);
+        return this.execute(uri, false, request, toFileOrError, response -> {
+            if (response.statusCode() == 200) {
+                return response.body();
+            }
+            try (InputStream body = (InputStream) response.body()) {
+                return parseResponse(response.statusCode(), body, retryAfterMillis(response));
+            } catch (APIException | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
 
-        // Execute the actual web request (if it wasn't already initiated
-        // by getOutputStream above) and record any occurred errors (we use
-        // the error stream in this case).
-        int status = conn.getResponseCode();
+    private CompletableFuture<Object> sendAsync(String method, String uri, Object data) {
+        return this.sendAsync(method, uri, data, null);
+    }
 
-        InputStream istream;
-        if (status != 200) {
-            istream = conn.getErrorStream();
-            if (istream == null) {
-                throw new APIException(
-                        "TestRail API return HTTP " + status +
-                                " (No additional error message received)"
-                );
+    /**
+     * Sends the request on the shared transport and decodes the response
+     * straight from the body stream. If handlers are given, a successful
+     * response is pushed through a new handler, which is returned, instead
+     * of being parsed into objects. Every attempt of a retried request
+     * gets its own handler.
+     */
+    private <T> CompletableFuture<T> sendAsync(String method, String uri, Object data, Supplier<? extends ContentHandler> handlers) {
+        HttpRequest request;
+        try {
+            request = buildRequest(method, uri, data);
+        } catch (IllegalArgumentException e) {
+            return failed(new MalformedURLException(e.getMessage()));
+        }
+        return this.execute(uri, method.equals("POST"), request, HttpResponse.BodyHandlers.ofInputStream(), response -> {
+            if (handlers == null || response.statusCode() != 200) {
+                @SuppressWarnings("unchecked")
+                T result = (T) this.decodeJson(response);
+                return result;
             }
-        } else {
-            istream = conn.getInputStream();
+            try (InputStream body = response.body()) {
+                ContentHandler handler = handlers.get();
+                streamResponse(body, handler);
+                @SuppressWarnings("unchecked")
+                T result = (T) handler;
+                return result;
+            } catch (APIException | IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Runs the request through the rate limit scheduler and the shared
+     * transport.
+     */
+    private <B, T> CompletableFuture<T> execute(String uri, boolean write, HttpRequest request,
+                                                HttpResponse.BodyHandler<B> handler,
+                                                Function<HttpResponse<B>, T> decoder) {
+        APIEndpointMetrics metrics = APIMetrics.getDefault().forUri(uri);
+        return RequestScheduler.getDefault().schedule(write,
+                () -> HttpTransport.getDefault().send(request, handler, decoder, metrics));
+    }
+
+    private Object decodeJson(HttpResponse<InputStream> response) {
+        try (InputStream body = response.body()) {
+            return parseResponse(response.statusCode(), body, retryAfterMillis(response));
+        } catch (APIException | IOException e) {
+            throw new CompletionException(e);
         }
+    }
 
-        // If 'get_attachment' (not 'get_attachments') returned valid status code, save the file
-        if ((istream != null)
-                && (uri.startsWith("get_attachment/"))) {
-            FileOutputStream outputStream = new FileOutputStream((String) data);
+    private static <T> CompletableFuture<T> failed(Exception e) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+    }
 
-            int bytesRead = 0;
-            byte[] buffer = new byte[1024];
-            while ((bytesRead = istream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, bytesRead);
+    private static long retryAfterMillis(HttpResponse<?> response) {
+        return retryAfterMillis(response.headers().firstValue("Retry-After").orElse(null));
+    }
+
+    /**
+     * Converts a Retry-After header (delta seconds or HTTP date) to
+     * milliseconds, -1 if absent or unreadable.
+     */
+    static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignored) {
+                return -1;
             }
+        }
+    }
 
-            outputStream.close();
-            istream.close();
-            return (String) data;
+    private HttpRequest buildRequest(String method, String uri, Object data) {
+        HttpRequest.Builder builder = requestBuilder(uri, "application/json");
+        if (method.equals("POST")) {
+            String body = data != null ? JSONValue.toJSONString(data) : "";
+            builder.POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        } else {
+            builder.GET();
         }
+        return builder.build();
+    }
 
-        // Not an attachment received
-        // Read the response body, if any, and deserialize it from JSON.
-        String text = "";
-        if (istream != null) {
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(
-                            istream,
-                            "UTF-8"
-                    )
-            );
+    private HttpRequest.Builder requestBuilder(String uri, String contentType) {
+        URI target = URI.create(this.m_url + uri);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(target)
+                .timeout(HttpTransport.REQUEST_TIMEOUT)
+                .header("Authorization", "Basic " + getAuthorization(this.m_user, this.m_password))
+                .header("Content-Type", contentType);
+
+        // HTTP/2 is only offered over TLS, plain http stays on keep-alive HTTP/1.1
+        // instead of paying for an h2c upgrade attempt on every new connection.
+        if (!"https".equalsIgnoreCase(target.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                text += line;
-                text += System.getProperty("line.separator");
+    static <T> T await(CompletableFuture<T> future) throws IOException, APIException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for TestRail response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof APIException) {
+                throw (APIException) cause;
             }
-
-            reader.close();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
         }
+    }
 
+    private static Object parseResponse(int status, InputStream body, long retryAfterMillis)
+            throws IOException, APIException {
+        // Decode directly from the stream, the body is never held as a String
+        Reader reader = bodyReader(body);
         Object result;
-        if (!text.equals("")) {
-            result = JSONValue.parse(text);
-        } else {
+        if (reader == null) {
             result = new JSONObject();
+        } else {
+            try {
+                result = new JSONParser().parse(reader);
+            } catch (ParseException e) {
+                result = null;
+            }
         }
 
         // Check for any occurred errors and add additional details to
@@ -255,12 +552,40 @@ public class APIClient {
 
             throw new APIException(
                     "TestRail API returned HTTP " + status +
-                            "(" + error + ")"
+                            "(" + error + ")",
+                    status, retryAfterMillis
             );
         }
         return result;
     }
 
+    private static void streamResponse(InputStream body, ContentHandler handler) throws IOException, APIException {
+        Reader reader = bodyReader(body);
+        if (reader == null) {
+            return;
+        }
+        try {
+            new JSONParser().parse(reader, handler);
+        } catch (ParseException e) {
+            throw new APIException("TestRail API returned malformed JSON (" + e + ")");
+        }
+    }
+
+    /**
+     * Returns a buffered UTF-8 reader over the body, or null if the body is
+     * empty.
+     */
+    private static Reader bodyReader(InputStream body) throws IOException {
+        PushbackReader reader = new PushbackReader(new BufferedReader(
+                new InputStreamReader(body, StandardCharsets.UTF_8), 64 * 1024));
+        int first = reader.read();
+        if (first == -1) {
+            return null;
+        }
+        reader.unread(first);
+        return reader;
+    }
+
     private static String getAuthorization(String user, String password) {
         try {
             return new String(Base64.getEncoder().encode((user + ":" + password).getBytes()));
@@ -0,0 +1,178 @@
+package testrail;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one endpoint family, i.e. all API methods with the same name before the first '/'.
+ * Every attempt sent by the transport is counted, so retries show up as separate requests.
+ */
+public class APIEndpointMetrics implements APIEndpointMetricsMXBean {
+
+    private final String endpoint;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder transportErrors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+    APIEndpointMetrics(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Marks a request as sent and returns its start time for requestFinished
+     *
+     * @param requestBytes: Size of the request body, negative if unknown
+     */
+    long requestStarted(long requestBytes) {
+        inFlight.incrementAndGet();
+        APIMetrics.getDefault().inFlight.incrementAndGet();
+        if (requestBytes > 0) {
+            bytesSent.add(requestBytes);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos: Value returned by requestStarted
+     * @param status:     HTTP status of the response, 0 if there was none
+     */
+    void requestFinished(long startNanos, int status) {
+        latency.record((System.nanoTime() - startNanos) / 1000);
+        inFlight.decrementAndGet();
+        APIMetrics.getDefault().inFlight.decrementAndGet();
+        if (status == 0) {
+            transportErrors.increment();
+        } else {
+            statusCounts.computeIfAbsent(status, code -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Wraps the body handler so the received body bytes are counted as they arrive
+     */
+    <T> HttpResponse.BodyHandler<T> counting(HttpResponse.BodyHandler<T> handler) {
+        return info -> new CountingSubscriber<>(handler.apply(info), bytesReceived);
+    }
+
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getTransportErrorCount() {
+        return transportErrors.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latency.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getValueAtQuantile(0.50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return latency.getValueAtQuantile(0.90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getValueAtQuantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        statusCounts.forEach((status, count) -> counts.put(String.valueOf(status), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: requests=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms mean=%.1fms"
+                        + " sent=%dB received=%dB inFlight=%d transportErrors=%d status=%s",
+                endpoint, getRequestCount(), getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis(),
+                getMeanMillis(), getBytesSent(), getBytesReceived(), getInFlight(), getTransportErrorCount(),
+                getStatusCounts());
+    }
+
+    private static final class CountingSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final LongAdder bytes;
+
+        CountingSubscriber(HttpResponse.BodySubscriber<T> delegate, LongAdder bytes) {
+            this.delegate = delegate;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            long received = 0;
+            for (ByteBuffer item : items) {
+                received += item.remaining();
+            }
+            bytes.add(received);
+            delegate.onNext(items);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+    }
+}
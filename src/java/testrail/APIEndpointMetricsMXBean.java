@@ -0,0 +1,40 @@
+package testrail;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one TestRail endpoint family, registered as
+ * testrail:type=APIClient,endpoint=&lt;family&gt; (e.g. endpoint=get_plan).
+ */
+public interface APIEndpointMetricsMXBean {
+
+    String getEndpoint();
+
+    long getRequestCount();
+
+    /**
+     * Requests that failed without an HTTP response (connect/read errors, timeouts)
+     */
+    long getTransportErrorCount();
+
+    int getInFlight();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    /**
+     * Responses per HTTP status code
+     */
+    Map<String, Long> getStatusCounts();
+}
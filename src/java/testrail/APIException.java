@@ -11,7 +11,32 @@
 package testrail;
 
 public class APIException extends Exception {
+    private final int statusCode;
+    private final long retryAfterMillis;
+
     public APIException(String message) {
+        this(message, 0, -1);
+    }
+
+    public APIException(String message, int statusCode, long retryAfterMillis) {
         super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns the HTTP status returned by TestRail, 0 if the error did not
+     * come from an HTTP response.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the delay requested by the server's Retry-After header in
+     * milliseconds, -1 if none was sent.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
     }
 }
@@ -0,0 +1,103 @@
+package testrail;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request metrics of all APIClient instances, per endpoint family: the API method name before the
+ * first '/', e.g. get_plan for get_plan/12, add_result_for_case for add_result_for_case/3/4.
+ *
+ * Each family is registered as a JMX MBean (testrail:type=APIClient,endpoint=...). A summary is
+ * written to the 'TestrailIntegration' logger (the infoLog appender) every
+ * 'testrail.metrics.log.interval.seconds' seconds (0 disables it) and on demand with logSummary().
+ */
+public class APIMetrics {
+
+    private static final Logger logger = LogManager.getLogger(APIMetrics.class);
+    private static final Logger metricsLog = LogManager.getLogger("TestrailIntegration");
+
+    private static final APIMetrics DEFAULT = new APIMetrics(Long.getLong("testrail.metrics.log.interval.seconds", 60L));
+
+    private final ConcurrentHashMap<String, APIEndpointMetrics> endpoints = new ConcurrentHashMap<>();
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    private APIMetrics(long logIntervalSeconds) {
+        if (logIntervalSeconds > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(HttpTransport.daemonThreads("testrail-metrics"));
+            timer.scheduleAtFixedRate(this::logSummary, logIntervalSeconds, logIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public static APIMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the metrics of the endpoint family of the API method, creating and registering them on first use
+     *
+     * @param uri: API method including parameters, e.g. get_plan/12
+     */
+    APIEndpointMetrics forUri(String uri) {
+        int end = uri.indexOf('/');
+        int query = uri.indexOf('&');
+        if (end < 0 || (query >= 0 && query < end)) {
+            end = query;
+        }
+        String family = end < 0 ? uri : uri.substring(0, end);
+        APIEndpointMetrics metrics = endpoints.get(family);
+        if (metrics != null) {
+            return metrics;
+        }
+        return endpoints.computeIfAbsent(family, name -> register(new APIEndpointMetrics(name)));
+    }
+
+    public Collection<APIEndpointMetrics> getEndpoints() {
+        return new TreeMap<>(endpoints).values();
+    }
+
+    /**
+     * Requests currently on the wire, over all endpoints
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Writes one line per endpoint family to the infoLog
+     */
+    public void logSummary() {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        StringBuilder summary = new StringBuilder("TestRail API metrics (in flight: ").append(getInFlight()).append(")");
+        for (APIEndpointMetrics metrics : getEndpoints()) {
+            summary.append("\n  ").append(metrics);
+        }
+        metricsLog.info(summary.toString());
+    }
+
+    private static APIEndpointMetrics register(APIEndpointMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("testrail:type=APIClient,endpoint=" + ObjectName.quote(metrics.getEndpoint()));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException | RuntimeException e) {
+            logger.debug("Could not register JMX metrics for " + metrics.getEndpoint() + ": " + e);
+        }
+        return metrics;
+    }
+}
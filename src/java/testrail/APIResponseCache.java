@@ -0,0 +1,241 @@
+package testrail;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded LRU cache with TTL for read-mostly TestRail responses (plans, suites, sections).
+ *
+ * Entries are keyed by request URL. Writes through APIClient invalidate what they may have changed:
+ * a POST to '{verb}_{entity}[_...]/{id}' (e.g. update_suite/3, add_plan_entry/7) evicts
+ * 'get_{entity}/{id}' and every cached 'get_{entity}s/...' list. Cached values are deep-copied on the
+ * way in and out, so callers may modify what they get back.
+ *
+ * Size and lifetime are configured with 'testrail.cache.max.entries' (0 disables caching) and
+ * 'testrail.cache.ttl.seconds'.
+ */
+public class APIResponseCache {
+
+    private static final String[] CACHEABLE_METHODS = {"get_plan/", "get_plans/", "get_suite/", "get_section/", "get_sections/"};
+
+    private static final APIResponseCache DEFAULT = new APIResponseCache(
+            Integer.getInteger("testrail.cache.max.entries", 512),
+            TimeUnit.SECONDS.toNanos(Long.getLong("testrail.cache.ttl.seconds", 600L)));
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    // Bumped by every invalidation, responses read before a write must not be cached after it
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private APIResponseCache(int maxEntries, long ttlNanos) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlNanos;
+        this.entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > APIResponseCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static APIResponseCache getDefault() {
+        return DEFAULT;
+    }
+
+    static boolean isCacheable(String uri) {
+        for (String method : CACHEABLE_METHODS) {
+            if (uri.startsWith(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the cached response for the URL, null if absent or expired.
+     */
+    Object get(String url) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+            if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+                entries.remove(url);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copyOf(entry.value);
+    }
+
+    long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches a response, unless a write happened since the request was started.
+     *
+     * @param url:        Request URL
+     * @param value:      Parsed response
+     * @param generation: generation() taken before the request was sent
+     */
+    void put(String url, Object value, long generation) {
+        if (maxEntries <= 0 || value == null) {
+            return;
+        }
+        Entry entry = new Entry(copyOf(value), System.nanoTime() + ttlNanos);
+        synchronized (entries) {
+            if (generation == this.generation) {
+                entries.put(url, entry);
+            }
+        }
+    }
+
+    /**
+     * Evicts the entries a write to the API method may have changed.
+     *
+     * @param baseUrl: API base URL the cached keys start with
+     * @param uri:     API method of the write, e.g. update_suite/3
+     */
+    void invalidate(String baseUrl, String uri) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        Predicate<String> changed = changedBy(baseUrl, uri);
+        if (changed == null) {
+            return;
+        }
+        synchronized (entries) {
+            generation++;
+            Iterator<String> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (changed.test(keys.next())) {
+                    keys.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns which request URLs a write to the API method may have changed, null if it names no entity
+     *
+     * @param baseUrl: API base URL the URLs start with
+     * @param uri:     API method of the write, e.g. update_suite/3
+     */
+    static Predicate<String> changedBy(String baseUrl, String uri) {
+        int slash = uri.indexOf('/');
+        int verbEnd = uri.indexOf('_');
+        if (slash < 0 || verbEnd < 0 || verbEnd > slash) {
+            return null;
+        }
+        int entityEnd = uri.indexOf('_', verbEnd + 1);
+        String entity = uri.substring(verbEnd + 1, entityEnd > 0 && entityEnd < slash ? entityEnd : slash);
+        String id = uri.substring(slash + 1).split("[/&]", 2)[0];
+
+        String single = baseUrl + "get_" + entity + "/" + id;
+        String list = baseUrl + "get_" + entity + "s/";
+        return key -> key.equals(single) || key.startsWith(single + "&") || key.startsWith(list);
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Entries dropped for size or age
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Entries dropped because a write may have changed them
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "APIResponseCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+    }
+
+    /**
+     * Deep copy of a parsed JSON value; strings, numbers and booleans are immutable and shared.
+     */
+    @SuppressWarnings("unchecked")
+    static Object copyOf(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject copy = new JSONObject();
+            for (Object field : ((JSONObject) value).entrySet()) {
+                Map.Entry<Object, Object> entry = (Map.Entry<Object, Object>) field;
+                copy.put(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray source = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            copy.ensureCapacity(source.size());
+            for (Object element : source) {
+                copy.add(copyOf(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package testrail;
+
+import org.json.simple.parser.ContentHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * SAX style handler which collects the values of some keys of every element of a JSON array, without
+ * building the JSONObject tree of the response. One handler reads one response: a retried request
+ * gets a new handler, so values of an attempt that failed midway are never reported.
+ *
+ * Elements are the objects of the top-level array (e.g. get_tests/1) or of an array directly under
+ * the top-level object (e.g. the 'tests' array of a paginated response). Only primitive values are
+ * reported; nested objects/arrays under a key are skipped and read as null. The '_links.next' page link of a
+ * paginated response is kept so the caller can continue with the next page.
+ */
+class FieldVisitorHandler implements ContentHandler {
+
+    private static final Boolean ARRAY = Boolean.TRUE;
+    private static final Boolean OBJECT = Boolean.FALSE;
+
+    private final List<String> keyNames;
+    // One row per element, with the values of the keys in keyNames order
+    private final List<Object[]> rows = new ArrayList<>();
+    private Object[] row;
+
+    // Open containers from the root down, ARRAY or OBJECT
+    private final Deque<Boolean> containers = new ArrayDeque<>();
+    // Index of the key whose value comes next, -1 if none
+    private int capturing = -1;
+    private boolean capturingNextLink;
+    private String nextLink;
+    // Key of the currently open entry of the root object, if the root is an object
+    private String rootKey;
+
+    FieldVisitorHandler(List<String> keyNames) {
+        this.keyNames = keyNames;
+    }
+
+    @Override
+    public void startJSON() {
+        containers.clear();
+        row = null;
+        capturing = -1;
+        capturingNextLink = false;
+        nextLink = null;
+        rootKey = null;
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() {
+        capturing = -1;
+        containers.push(OBJECT);
+        if (isInElement()) {
+            row = new Object[keyNames.size()];
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        if (row != null && isInElement()) {
+            rows.add(row);
+            row = null;
+        }
+        containers.pop();
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        if (containers.size() == 1) {
+            rootKey = key;
+        }
+        capturing = isInElement() ? keyNames.indexOf(key) : -1;
+        capturingNextLink = key.equals("next") && isInLinks();
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        capturing = -1;
+        capturingNextLink = false;
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        capturing = -1;
+        containers.push(ARRAY);
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        containers.pop();
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (capturing >= 0) {
+            row[capturing] = value;
+            capturing = -1;
+        } else if (capturingNextLink) {
+            nextLink = (String) value;
+            capturingNextLink = false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the values of the keys of every element, in response order, null for a missing key
+     */
+    List<Object[]> getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the '_links.next' link of the last parsed page, null if there is no further page.
+     */
+    String getNextLink() {
+        return nextLink;
+    }
+
+    // Only the '_links' object held by the root object carries page links
+    private boolean isInLinks() {
+        return containers.size() == 2 && containers.peek() == OBJECT && containers.peekLast() == OBJECT
+                && "_links".equals(rootKey);
+    }
+
+    /**
+     * True if the innermost open object is an element, i.e. a child of the root array or of an array
+     * held directly by the root object.
+     */
+    private boolean isInElement() {
+        int depth = containers.size();
+        if (depth < 2 || containers.peek() != OBJECT) {
+            return false;
+        }
+        // containers iterates innermost first: [element, array, (root object)]
+        Iterator<Boolean> outer = containers.iterator();
+        outer.next();
+        if (outer.next() != ARRAY) {
+            return false;
+        }
+        return depth == 2 || (depth == 3 && outer.next() == OBJECT);
+    }
+}
@@ -0,0 +1,127 @@
+package testrail;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Keep-alive transport shared by every APIClient instance.
+ *
+ * A single java.net.http.HttpClient is reused for the whole JVM so TCP/TLS connections are pooled
+ * across calls and across APIClient instances, and HTTP/2 is negotiated where the server supports it.
+ * The number of requests on the wire at once is bounded by 'testrail.http.max.connections'; requests
+ * above the bound wait for a free slot without blocking the calling thread.
+ */
+class HttpTransport {
+
+    private static final int MAX_CONNECTIONS = Integer.getInteger("testrail.http.max.connections", 8);
+    private static final long CONNECT_TIMEOUT_SECONDS = Long.getLong("testrail.http.connect.timeout.seconds", 30L);
+    static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(Long.getLong("testrail.http.request.timeout.seconds", 120L));
+
+    private static final HttpTransport DEFAULT = new HttpTransport(MAX_CONNECTIONS);
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final int maxConnections;
+    private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+    private int inUse;
+
+    private HttpTransport(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        // Not bounded itself: decoders may block on streamed bodies that other client threads are filling
+        this.executor = Executors.newCachedThreadPool(daemonThreads("testrail-http"));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(CONNECT_TIMEOUT_SECONDS))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    static HttpTransport getDefault() {
+        return DEFAULT;
+    }
+
+    ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Sends the request once a connection slot is free and decodes the response while still holding
+     * the slot, so streamed bodies are fully consumed before the next request may use the connection.
+     *
+     * @param request: Request to send
+     * @param handler: Body handler for the raw response
+     * @param decoder: Converts the response into the result of the returned future. Checked failures
+     *                 must be wrapped in a CompletionException.
+     * @param metrics: Metrics of the endpoint, timed from the moment the request goes on the wire
+     * @return Future completed with the decoded response
+     */
+    <T, R> CompletableFuture<R> send(HttpRequest request, HttpResponse.BodyHandler<T> handler,
+                                     Function<HttpResponse<T>, R> decoder, APIEndpointMetrics metrics) {
+        long requestBytes = request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L);
+        long[] start = new long[1];
+        int[] status = new int[1];
+        boolean[] started = new boolean[1];
+        CompletableFuture<R> result = acquire()
+                .thenCompose(ignored -> {
+                    start[0] = metrics.requestStarted(requestBytes);
+                    started[0] = true;
+                    return client.sendAsync(request, metrics.counting(handler));
+                })
+                .thenApply(response -> {
+                    status[0] = response.statusCode();
+                    return decoder.apply(response);
+                });
+        result.whenComplete((response, error) -> {
+            if (started[0]) {
+                metrics.requestFinished(start[0], status[0]);
+            }
+            release();
+        });
+        return result;
+    }
+
+    private CompletableFuture<Void> acquire() {
+        synchronized (waiting) {
+            if (inUse < maxConnections) {
+                inUse++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            waiting.addLast(slot);
+            return slot;
+        }
+    }
+
+    private void release() {
+        CompletableFuture<Void> next;
+        synchronized (waiting) {
+            next = waiting.pollFirst();
+            if (next == null) {
+                inUse--;
+                return;
+            }
+        }
+        // Hand the slot straight to the next waiter, off the releasing thread
+        executor.execute(() -> next.complete(null));
+    }
+
+    static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package testrail;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Lazily walks the pages of a bulk TestRail endpoint (get_plans, get_cases, get_tests, ...).
+ *
+ * As soon as a page arrives, the request for the following page ('_links.next') is started in the
+ * background, so the next page is usually ready by the time the current one is consumed. At most one
+ * page is fetched ahead: a caller that stops early (findFirst, anyMatch, ...) never downloads more than
+ * the page it stopped on plus one. Older TestRail versions answer with a plain array, which is treated
+ * as a single page.
+ */
+class PagedIterator implements Iterator<JSONObject> {
+
+    private final Function<String, CompletableFuture<Object>> fetch;
+    private Iterator<?> current = Collections.emptyIterator();
+    private CompletableFuture<Object> nextPage;
+
+    /**
+     * @param firstUri: API method of the first page, e.g. get_plans/1
+     * @param fetch:    Issues an async GET for an API method
+     */
+    PagedIterator(String firstUri, Function<String, CompletableFuture<Object>> fetch) {
+        this.fetch = fetch;
+        this.nextPage = fetch.apply(firstUri);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (nextPage == null) {
+                return false;
+            }
+            Object page = await(nextPage);
+            nextPage = null;
+            current = openPage(page);
+        }
+        return true;
+    }
+
+    @Override
+    public JSONObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return (JSONObject) current.next();
+    }
+
+    /**
+     * Abandons the prefetched page, if any.
+     */
+    void cancel() {
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+        current = Collections.emptyIterator();
+    }
+
+    private Iterator<?> openPage(Object page) {
+        if (page instanceof JSONArray) {
+            return ((JSONArray) page).iterator();
+        }
+        JSONObject response = (JSONObject) page;
+        String next = nextLink(response);
+        if (next != null) {
+            nextPage = fetch.apply(next);
+        }
+        for (Object value : response.values()) {
+            if (value instanceof JSONArray) {
+                return ((JSONArray) value).iterator();
+            }
+        }
+        return Collections.emptyIterator();
+    }
+
+    private static String nextLink(JSONObject response) {
+        Object links = response.get("_links");
+        if (!(links instanceof JSONObject)) {
+            return null;
+        }
+        Object next = ((JSONObject) links).get("next");
+        return next == null ? null : APIClient.toApiMethod(next.toString());
+    }
+
+    private static Object await(CompletableFuture<Object> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for TestRail page"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof APIException) {
+                throw new UncheckedAPIException((APIException) cause);
+            }
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package testrail;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import testrail.model.Plan;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plan of an execution: the plan ID and its run IDs.
+ *
+ * shared() lets the shards of one execution (e.g. CI jobs of one build running side by side on a
+ * host) resolve the plan once: the first to take the lock of the plan in the shared directory creates
+ * or finds the plan and writes the descriptor, the others wait for the lock and read it. Descriptors
+ * are keyed by an execution ID, so they are never reused by a later execution, and the plan of a
+ * descriptor is checked with get_plan before it is used. Only IDs are shared; the run of every case
+ * and the cases failed so far are loaded by each shard. If the resolving shard fails or dies, the lock
+ * is released and the next one resolves the plan itself.
+ */
+public class PlanDescriptor {
+
+    private static final Logger logger = LogManager.getLogger(PlanDescriptor.class);
+
+    // File locks are held by the JVM, threads of one JVM are kept apart with this
+    private static final Object LOCAL_LOCK = new Object();
+
+    private final long planID;
+    private final long[] runIDs;
+
+    public PlanDescriptor(long planID, long[] runIDs) {
+        this.planID = planID;
+        this.runIDs = runIDs.clone();
+    }
+
+    public long getPlanID() {
+        return planID;
+    }
+
+    public long[] getRunIDs() {
+        return runIDs.clone();
+    }
+
+    public interface Loader {
+        PlanDescriptor load() throws IOException, APIException;
+    }
+
+    /**
+     * Returns the plan written by another shard of the execution, or loads it and writes it for the others
+     *
+     * @param dir:         Directory shared by the shards
+     * @param executionID: ID of the execution, the same for all its shards (e.g. the CI build number)
+     * @param planName:    Name of the plan
+     * @param basePlanID:  ID of the base plan the plan is copied from
+     * @param client:      The APIClient used to check the plan read from the directory
+     * @param loader:      Creates or finds the plan, called by one shard at a time
+     */
+    public static PlanDescriptor shared(Path dir, String executionID, String planName, String basePlanID, APIClient client,
+                                        Loader loader) throws IOException, APIException {
+        Files.createDirectories(dir);
+        String key = planName.replaceAll("[^A-Za-z0-9._-]", "_");
+        key = key.substring(0, Math.min(64, key.length())) + "-"
+                + Integer.toHexString((executionID + "\n" + planName + "\n" + basePlanID).hashCode());
+        Path descriptorFile = dir.resolve(key + ".json");
+
+        synchronized (LOCAL_LOCK) {
+            long waitStarted = System.nanoTime();
+            // The lock is released when the channel is closed
+            try (FileChannel channel = FileChannel.open(dir.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.lock();
+                PlanDescriptor shared = read(descriptorFile, executionID, planName, basePlanID);
+                if (shared != null) {
+                    shared = verify(client, shared.planID, planName);
+                }
+                if (shared != null) {
+                    logger.info("Plan " + shared.planID + " read from " + descriptorFile + " after waiting "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStarted) + " ms");
+                    return shared;
+                }
+                PlanDescriptor loaded = loader.load();
+                loaded.write(descriptorFile, executionID, planName, basePlanID);
+                logger.info("Plan " + loaded.planID + " shared in " + descriptorFile);
+                return loaded;
+            }
+        }
+    }
+
+    // The descriptor in the file, null if there is none, or it is of another execution or plan, or unreadable
+    private static PlanDescriptor read(Path file, String executionID, String planName, String basePlanID) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            if (!executionID.equals(json.get("execution_id")) || !planName.equals(json.get("plan_name"))
+                    || !String.valueOf(basePlanID).equals(json.get("base_plan_id"))) {
+                return null;
+            }
+            JSONArray runIDs = (JSONArray) json.get("run_ids");
+            return new PlanDescriptor((Long) json.get("plan_id"), runIDs.stream().mapToLong(id -> (Long) id).toArray());
+        } catch (IOException | ParseException | RuntimeException exception) {
+            logger.warn("Plan descriptor " + file + " not readable, the plan is resolved again: " + exception);
+            return null;
+        }
+    }
+
+    // The plan as TestRail has it now, null if it was deleted or renamed since the descriptor was written
+    private static PlanDescriptor verify(APIClient client, long planID, String planName) throws IOException, APIException {
+        try {
+            Plan plan = Plan.fromJSON((JSONObject) client.sendGet("get_plan/" + planID));
+            if (planName.equals(plan.name())) {
+                return new PlanDescriptor(plan.id(), plan.runIds());
+            }
+        } catch (APIException exception) {
+            if (exception.getStatusCode() != 400 && exception.getStatusCode() != 404) {
+                throw exception;
+            }
+        }
+        logger.info("Shared plan " + planID + " '" + planName + "' no longer in TestRail, the plan is resolved again");
+        return null;
+    }
+
+    // Written next to the file and moved over it, so readers never see half a descriptor
+    private void write(Path file, String executionID, String planName, String basePlanID) throws IOException {
+        JSONArray runIDArray = new JSONArray();
+        Arrays.stream(runIDs).forEach(runIDArray::add);
+        JSONObject json = new JSONObject();
+        json.put("execution_id", executionID);
+        json.put("plan_name", planName);
+        json.put("base_plan_id", String.valueOf(basePlanID));
+        json.put("plan_id", planID);
+        json.put("run_ids", runIDArray);
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            json.writeJSONString(writer);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,196 @@
+package testrail;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Plan name to plan ID index of the plans of a project created by a user, kept in a file so the plan
+ * list is not downloaded on every start.
+ *
+ * The index remembers the created_on of the newest plan it has seen; a refresh fetches only the plans
+ * created since with get_plans' created_after filter. A name found in the index is checked with one
+ * get_plan, so plans deleted or renamed since are dropped. Of several plans with the same name the
+ * newest wins, as get_plans lists the newest first. The index keeps only that one, so when it is
+ * dropped the plans are scanned in full for an older plan of the name.
+ */
+public class PlanNameIndex {
+
+    private static final Logger logger = LogManager.getLogger(PlanNameIndex.class);
+
+    private final Path file;
+    private final String projectID;
+    private final String createdBy;
+    // Plan name to {plan ID, created_on}
+    private final Map<String, long[]> plans = new HashMap<>();
+    private long watermark;
+    private boolean changed;
+
+    private PlanNameIndex(Path file, String projectID, String createdBy) {
+        this.file = file;
+        this.projectID = projectID;
+        this.createdBy = createdBy;
+    }
+
+    /**
+     * Reads the index of the project and user from the directory, empty if there is none yet
+     *
+     * @param dir:       Directory of the index files
+     * @param projectID: ID of the project
+     * @param createdBy: ID of the user who created the plans, empty for all users
+     */
+    public static PlanNameIndex load(Path dir, String projectID, String createdBy) {
+        String user = createdBy == null || createdBy.isBlank() ? "all" : createdBy.trim();
+        PlanNameIndex index = new PlanNameIndex(dir.resolve("plan-names-" + projectID + "-" + user + ".json"), projectID,
+                user.equals("all") ? "" : user);
+        if (!Files.isRegularFile(index.file)) {
+            return index;
+        }
+        try (Reader reader = Files.newBufferedReader(index.file, StandardCharsets.UTF_8)) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            index.watermark = (Long) json.get("watermark");
+            JSONObject names = (JSONObject) json.get("plans");
+            for (Object name : names.keySet()) {
+                JSONObject plan = (JSONObject) names.get(name);
+                index.plans.put((String) name, new long[]{(Long) plan.get("id"), (Long) plan.get("created_on")});
+            }
+        } catch (IOException | ParseException | RuntimeException exception) {
+            logger.warn("Plan name index " + index.file + " not readable, rebuilt from TestRail: " + exception);
+            index.plans.clear();
+            index.watermark = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the ID of the plan with the name, or an empty string if there is none
+     *
+     * @param client: The APIClient used to make the API requests
+     * @param title:  Name of the plan
+     */
+    public String find(APIClient client, String title) throws IOException, APIException {
+        long[] plan = plans.get(title);
+        boolean dropped = false;
+        if (plan != null) {
+            if (exists(client, plan[0], title)) {
+                return String.valueOf(plan[0]);
+            }
+            dropped = true;
+        }
+        refresh(client);
+        plan = plans.get(title);
+        if (plan == null && dropped) {
+            plan = scan(client, title);
+        }
+        return plan == null ? "" : String.valueOf(plan[0]);
+    }
+
+    /**
+     * Adds a plan, e.g. one just created
+     */
+    public void put(String title, long planID, long createdOn) {
+        long[] known = plans.get(title);
+        if (known == null || known[1] <= createdOn) {
+            plans.put(title, new long[]{planID, createdOn});
+            changed = true;
+        }
+    }
+
+    /**
+     * Writes the index if it changed. Written next to the file and moved over it, so readers never see half an index
+     */
+    public void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+        JSONObject names = new JSONObject();
+        plans.forEach((name, plan) -> {
+            JSONObject json = new JSONObject();
+            json.put("id", plan[0]);
+            json.put("created_on", plan[1]);
+            names.put(name, json);
+        });
+        JSONObject json = new JSONObject();
+        json.put("watermark", watermark);
+        json.put("plans", names);
+
+        Files.createDirectories(file.getParent());
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            json.writeJSONString(writer);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+    }
+
+    // False if the plan is gone or renamed, it is then dropped from the index
+    private boolean exists(APIClient client, long planID, String title) throws IOException, APIException {
+        try {
+            JSONObject plan = (JSONObject) client.sendGet("get_plan/" + planID);
+            if (title.equals(plan.get("name"))) {
+                return true;
+            }
+        } catch (APIException exception) {
+            if (exception.getStatusCode() != 400 && exception.getStatusCode() != 404) {
+                throw exception;
+            }
+        }
+        logger.info("Plan " + planID + " '" + title + "' no longer in TestRail, dropped from the plan name index");
+        plans.remove(title);
+        changed = true;
+        return false;
+    }
+
+    // The newest plan with the name in all plans, added to the index, null if there is none. Older than the
+    // watermark, so a refresh does not see it
+    private long[] scan(APIClient client, String title) throws IOException, APIException {
+        try (Stream<JSONObject> all = client.sendGetStream("get_plans/" + projectID + "&created_by=" + createdBy)) {
+            JSONObject plan = all.filter(candidate -> title.equals(candidate.get("name"))).findFirst().orElse(null);
+            if (plan == null) {
+                return null;
+            }
+            logger.info("Plan " + plan.get("id") + " '" + title + "' found by a full scan, added to the plan name index");
+            put(title, (Long) plan.get("id"), (Long) plan.get("created_on"));
+            return plans.get(title);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Adds the plans created since the watermark. The second of the watermark is fetched again, plans created in it may be new
+    private void refresh(APIClient client) throws IOException, APIException {
+        String uri = "get_plans/" + projectID + "&created_by=" + createdBy
+                + (watermark > 0 ? "&created_after=" + (watermark - 1) : "");
+        int count = 0;
+        try (Stream<JSONObject> created = client.sendGetStream(uri)) {
+            for (JSONObject plan : (Iterable<JSONObject>) created::iterator) {
+                long createdOn = (Long) plan.get("created_on");
+                put((String) plan.get("name"), (Long) plan.get("id"), createdOn);
+                watermark = Math.max(watermark, createdOn);
+                count++;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
+        }
+        changed = true;
+        logger.info(count + " plans read into the plan name index, " + plans.size() + " names known");
+    }
+}
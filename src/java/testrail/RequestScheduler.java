@@ -0,0 +1,219 @@
+package testrail;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Schedules TestRail requests under the account's rate limit.
+ *
+ * Reads (GET) and writes (POST) draw from separate token buckets, configured in requests per minute
+ * by 'testrail.rate.read.per.minute' and 'testrail.rate.write.per.minute' (0 = unlimited) with a
+ * burst of 'testrail.rate.burst'. Up to 'testrail.rate.queue.size' requests hold a token reservation
+ * while they wait for their start; further requests wait in submission order and reserve a token when
+ * an earlier one is sent. Scheduling never blocks the submitting thread, so requests may be submitted
+ * from the completion of other requests.
+ *
+ * HTTP 429 answers pause both buckets for the server's Retry-After and the request is sent again;
+ * TestRail has not processed a throttled request, so this is safe for writes too. Idempotent GETs
+ * are additionally retried with jittered exponential backoff on I/O errors and 5xx answers.
+ */
+class RequestScheduler {
+
+    private static final Logger logger = LogManager.getLogger(RequestScheduler.class);
+
+    private static final int MAX_ATTEMPTS = Integer.getInteger("testrail.retry.max.attempts", 6);
+    private static final long BACKOFF_BASE_MILLIS = Long.getLong("testrail.retry.backoff.millis", 500L);
+    private static final long BACKOFF_MAX_MILLIS = Long.getLong("testrail.retry.backoff.max.millis", 30_000L);
+
+    private static final RequestScheduler DEFAULT = new RequestScheduler(
+            Integer.getInteger("testrail.rate.read.per.minute", 0),
+            Integer.getInteger("testrail.rate.write.per.minute", 0),
+            Integer.getInteger("testrail.rate.burst", 5),
+            Integer.getInteger("testrail.rate.queue.size", 1000));
+
+    private final TokenBucket reads;
+    private final TokenBucket writes;
+    // Requests over the queue size, started when a queued request is sent
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int queueSlots;
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(HttpTransport.daemonThreads("testrail-scheduler"));
+
+    // System.nanoTime() before which no request may start, set from Retry-After
+    private volatile long pausedUntil = System.nanoTime();
+
+    private RequestScheduler(int readsPerMinute, int writesPerMinute, int burst, int queueSize) {
+        this.reads = new TokenBucket(readsPerMinute, burst);
+        this.writes = new TokenBucket(writesPerMinute, burst);
+        this.queueSlots = Math.max(1, queueSize);
+    }
+
+    static RequestScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sends the request when its bucket allows it, retrying as described above.
+     *
+     * @param write:   True for requests that change data (POST)
+     * @param request: Issues one attempt of the request
+     * @return Future of the final attempt
+     */
+    <T> CompletableFuture<T> schedule(boolean write, Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable start = () -> attempt(write, request, 1, result);
+        synchronized (waiting) {
+            if (queueSlots == 0) {
+                waiting.add(start);
+                return result;
+            }
+            queueSlots--;
+        }
+        start.run();
+        return result;
+    }
+
+    // Hands the freed slot to the oldest waiting request, started on the timer thread so a chain of
+    // requests sent at once does not grow the stack
+    private void releaseSlot() {
+        Runnable next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                queueSlots++;
+                return;
+            }
+        }
+        timer.execute(next);
+    }
+
+    // Only the first attempt holds a queue slot, retries were admitted already
+    private <T> void attempt(boolean write, Supplier<CompletableFuture<T>> request, int attempt,
+                             CompletableFuture<T> result) {
+        long delay = (write ? writes : reads).reserve(System.nanoTime(), pausedUntil);
+        Runnable send = () -> {
+            if (attempt == 1) {
+                releaseSlot();
+            }
+            CompletableFuture<T> response;
+            try {
+                response = request.get();
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            response.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.complete(value);
+                    return;
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                long retryDelay = retryDelayMillis(write, cause, attempt);
+                if (retryDelay < 0) {
+                    result.completeExceptionally(cause);
+                    return;
+                }
+                logger.info("Retrying TestRail request (attempt " + (attempt + 1) + ") in " + retryDelay + " ms: " + cause.getMessage());
+                timer.schedule(() -> attempt(write, request, attempt + 1, result), retryDelay, TimeUnit.MILLISECONDS);
+            });
+        };
+        if (delay <= 0) {
+            send.run();
+        } else {
+            timer.schedule(send, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Returns how long to wait before the next attempt, or -1 if the failure is final.
+     */
+    private long retryDelayMillis(boolean write, Throwable cause, int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            return -1;
+        }
+        if (cause instanceof APIException) {
+            APIException apiException = (APIException) cause;
+            int status = apiException.getStatusCode();
+            if (status == 429) {
+                long wait = apiException.getRetryAfterMillis() >= 0
+                        ? apiException.getRetryAfterMillis() : backoffMillis(attempt);
+                pause(wait);
+                return wait;
+            }
+            if (!write && (status == 500 || status == 502 || status == 503 || status == 504)) {
+                return apiException.getRetryAfterMillis() >= 0
+                        ? apiException.getRetryAfterMillis() : backoffMillis(attempt);
+            }
+            return -1;
+        }
+        if (!write && cause instanceof IOException) {
+            return backoffMillis(attempt);
+        }
+        return -1;
+    }
+
+    // Equal jitter: random between half of and the full exponential bound
+    private static long backoffMillis(int attempt) {
+        long bound = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(bound / 2, bound + 1);
+    }
+
+    private void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        synchronized (this) {
+            if (until - pausedUntil > 0) {
+                pausedUntil = until;
+            }
+        }
+    }
+
+    /**
+     * Token bucket in its virtual scheduling form: instead of counting tokens it hands out start
+     * times, so waiting requests are released in FIFO order without a dispatcher thread.
+     */
+    static final class TokenBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        // Theoretical time the bucket is empty again
+        private long emptyAt = System.nanoTime();
+
+        TokenBucket(int perMinute, int burst) {
+            this.intervalNanos = perMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / perMinute : 0;
+            this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+        }
+
+        /**
+         * Reserves a token and returns the nanoseconds to wait before using it.
+         *
+         * @param now:       Current System.nanoTime()
+         * @param notBefore: Earliest allowed start, e.g. the end of a Retry-After pause
+         */
+        synchronized long reserve(long now, long notBefore) {
+            long start = notBefore - now > 0 ? notBefore : now;
+            if (intervalNanos == 0) {
+                return start - now;
+            }
+            if (emptyAt - now < 0) {
+                emptyAt = now;
+            }
+            long allowedAt = emptyAt - burstNanos;
+            if (allowedAt - start > 0) {
+                start = allowedAt;
+            }
+            emptyAt = (start - emptyAt > 0 ? start : emptyAt) + intervalNanos;
+            return start - now;
+        }
+    }
+}
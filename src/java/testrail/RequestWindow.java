@@ -0,0 +1,72 @@
+package testrail;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many requests of a job (e.g. a suite backup) are in flight. Requests over the limit wait
+ * in submission order and are started when an earlier one completes, without blocking a thread, so
+ * requests may be submitted from the completion of other requests. The requests still go through the
+ * shared transport and its rate limit.
+ */
+class RequestWindow {
+
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int available;
+
+    RequestWindow(int size) {
+        this.available = Math.max(1, size);
+    }
+
+    /**
+     * Starts the request now if the window has room, or once it has
+     *
+     * @param request: Sends the request, e.g. () -> client.sendPostAsync(uri, data)
+     * @return Future of the response
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> response = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> sent;
+            try {
+                sent = request.get();
+            } catch (RuntimeException exception) {
+                release();
+                response.completeExceptionally(exception);
+                return;
+            }
+            sent.whenComplete((value, error) -> {
+                release();
+                if (error != null) {
+                    response.completeExceptionally(error);
+                } else {
+                    response.complete(value);
+                }
+            });
+        };
+        synchronized (this) {
+            if (available == 0) {
+                waiting.add(start);
+                return response;
+            }
+            available--;
+        }
+        start.run();
+        return response;
+    }
+
+    // Hands the freed slot to the oldest waiting request
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        next.run();
+    }
+}
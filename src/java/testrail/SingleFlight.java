@@ -0,0 +1,151 @@
+package testrail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent GETs: while a request for a URL is in flight, further requests for
+ * the same URL wait for it instead of going to TestRail, and all of them get its parsed result.
+ *
+ * Only lookups of the project's structure (cases, suites, sections, plans, statuses and the like) are
+ * coalesced. Tests and results change with every result posted, so they are always requested. A write
+ * ends the in-flight requests it may have changed, as APIResponseCache.invalidate evicts them: requests
+ * issued after it never join a response read before it.
+ *
+ * In-flight requests are tracked in a ConcurrentHashMap, which locks per hash bin, so requests for
+ * different URLs never wait on each other. Callers that shared a response each get their own deep
+ * copy of it, the caller that issued the request keeps the original when nobody joined.
+ */
+public class SingleFlight {
+
+    private static final SingleFlight DEFAULT = new SingleFlight();
+
+    private static final String[] COALESCED_METHODS = {"get_case/", "get_cases/", "get_suite/", "get_suites/",
+            "get_section/", "get_sections/", "get_plan/", "get_plans/", "get_project/", "get_projects",
+            "get_milestone/", "get_milestones/", "get_statuses", "get_priorities", "get_case_fields",
+            "get_case_types", "get_result_fields", "get_templates/", "get_user/", "get_users"};
+
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    public static SingleFlight getDefault() {
+        return DEFAULT;
+    }
+
+    static boolean isCoalesced(String uri) {
+        for (String method : COALESCED_METHODS) {
+            if (uri.startsWith(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Joins the in-flight request for the key, or issues a new one.
+     *
+     * @param key:     Identity of the request, e.g. its URL
+     * @param request: Issues the request when no identical one is in flight
+     * @return Future of the parsed response
+     */
+    CompletableFuture<Object> execute(String key, Supplier<CompletableFuture<Object>> request) {
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight != null) {
+                if (flight.join()) {
+                    collapsed.increment();
+                    return flight.result.thenApply(APIResponseCache::copyOf);
+                }
+                // Finished meanwhile and about to leave the map, look again
+                continue;
+            }
+
+            Flight mine = new Flight();
+            if (inFlight.putIfAbsent(key, mine) != null) {
+                continue;
+            }
+            issued.increment();
+            CompletableFuture<Object> own = new CompletableFuture<>();
+            CompletableFuture<Object> response;
+            try {
+                response = request.get();
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+            response.whenComplete((value, error) -> {
+                inFlight.remove(key, mine);
+                boolean shared = mine.close();
+                if (error != null) {
+                    mine.result.completeExceptionally(error);
+                    own.completeExceptionally(error);
+                } else {
+                    mine.result.complete(value);
+                    own.complete(shared ? APIResponseCache.copyOf(value) : value);
+                }
+            });
+            return own;
+        }
+    }
+
+    /**
+     * Ends the in-flight requests a write to the API method may have changed: they still complete for
+     * their callers, later identical requests are issued anew.
+     *
+     * @param baseUrl: API base URL the keys start with
+     * @param uri:     API method of the write, e.g. add_plan_entry/7
+     */
+    void invalidate(String baseUrl, String uri) {
+        Predicate<String> changed = APIResponseCache.changedBy(baseUrl, uri);
+        if (changed != null) {
+            inFlight.keySet().removeIf(changed);
+        }
+    }
+
+    /**
+     * Requests actually sent to TestRail through single-flight
+     */
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    /**
+     * Requests answered by joining an identical in-flight request
+     */
+    public long getCollapsed() {
+        return collapsed.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight[issued=" + getIssued() + ", collapsed=" + getCollapsed() + ", inFlight=" + getInFlight() + "]";
+    }
+
+    private static final class Flight {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        private int joined;
+        private boolean closed;
+
+        synchronized boolean join() {
+            if (closed) {
+                return false;
+            }
+            joined++;
+            return true;
+        }
+
+        // Returns true if anybody joined, nobody can join afterwards
+        synchronized boolean close() {
+            closed = true;
+            return joined > 0;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package testrail;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import testrail.model.Case;
+import utils.LongLongMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Sections of a suite, in get_sections order, with the case IDs of each section. Read with one paged
+ * get_sections and one paged get_cases for the whole suite, so reading costs pages, not sections.
+ *
+ * The case IDs are kept in one array grouped by section (in get_cases order within a section) with
+ * the start of each section's group in another, instead of a list per section.
+ */
+public class SuiteTree {
+
+    private static final Logger logger = LogManager.getLogger(SuiteTree.class);
+
+    private final long[] sectionIDs;
+    private final String[] names;
+    // Index of the parent section, -1 for root sections
+    private final int[] parents;
+    private final int[] depths;
+    // Cases of section i are caseIDs[caseStarts[i]] up to caseIDs[caseStarts[i + 1]]
+    private final int[] caseStarts;
+    private final long[] caseIDs;
+
+    private SuiteTree(long[] sectionIDs, String[] names, int[] parents, int[] depths, int[] caseStarts, long[] caseIDs) {
+        this.sectionIDs = sectionIDs;
+        this.names = names;
+        this.parents = parents;
+        this.depths = depths;
+        this.caseStarts = caseStarts;
+        this.caseIDs = caseIDs;
+    }
+
+    /**
+     * Reads the sections and cases of the suite
+     *
+     * @param client:    The APIClient used to make the API requests
+     * @param projectID: ID of the project
+     * @param suiteID:   ID of the suite
+     */
+    public static SuiteTree read(APIClient client, long projectID, long suiteID) throws IOException, APIException {
+        List<JSONObject> sections = new ArrayList<>();
+        try (Stream<JSONObject> all = client.sendGetStream("get_sections/" + projectID + "&suite_id=" + suiteID)) {
+            all.forEach(sections::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
+        }
+
+        int count = sections.size();
+        long[] sectionIDs = new long[count];
+        String[] names = new String[count];
+        LongLongMap indexes = new LongLongMap(count);
+        for (int i = 0; i < count; i++) {
+            sectionIDs[i] = (Long) sections.get(i).get("id");
+            names[i] = (String) sections.get(i).get("name");
+            indexes.put(sectionIDs[i], i);
+        }
+        int[] parents = new int[count];
+        for (int i = 0; i < count; i++) {
+            Long parentID = (Long) sections.get(i).get("parent_id");
+            parents[i] = parentID == null ? -1 : (int) indexes.get(parentID, -1);
+        }
+        int[] depths = new int[count];
+        for (int i = 0; i < count; i++) {
+            depths[i] = depth(parents, i);
+        }
+
+        // Section index of every case, then the cases grouped by section
+        LongStream.Builder caseIDs = LongStream.builder();
+        IntStream.Builder caseSections = IntStream.builder();
+        int[] skipped = {0};
+        try (Stream<Case> cases = new TestRailClient(client).streamCases(projectID, suiteID)) {
+            cases.forEach(testCase -> {
+                int section = (int) indexes.get(testCase.sectionId(), -1);
+                if (section < 0) {
+                    skipped[0]++;
+                    return;
+                }
+                caseIDs.add(testCase.id());
+                caseSections.add(section);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
+        }
+        if (skipped[0] > 0) {
+            logger.warn(skipped[0] + " cases of suite " + suiteID + " are in sections not listed by get_sections, skipped");
+        }
+        long[] ids = caseIDs.build().toArray();
+        int[] sectionOfCase = caseSections.build().toArray();
+        int[] caseStarts = new int[count + 1];
+        for (int section : sectionOfCase) {
+            caseStarts[section + 1]++;
+        }
+        for (int i = 0; i < count; i++) {
+            caseStarts[i + 1] += caseStarts[i];
+        }
+        int[] next = Arrays.copyOf(caseStarts, count);
+        long[] grouped = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            grouped[next[sectionOfCase[i]]++] = ids[i];
+        }
+        logger.info("Suite " + suiteID + " read: " + count + " sections, " + grouped.length + " cases");
+        return new SuiteTree(sectionIDs, names, parents, depths, caseStarts, grouped);
+    }
+
+    // Sections whose parent is not listed count as roots
+    private static int depth(int[] parents, int section) {
+        int depth = 0;
+        for (int parent = parents[section]; parent >= 0 && depth < parents.length; parent = parents[parent]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    public int size() {
+        return sectionIDs.length;
+    }
+
+    public long getSectionID(int section) {
+        return sectionIDs[section];
+    }
+
+    public String getName(int section) {
+        return names[section];
+    }
+
+    /**
+     * Returns the index of the parent section, -1 for a root section
+     */
+    public int getParent(int section) {
+        return parents[section];
+    }
+
+    public int getDepth(int section) {
+        return depths[section];
+    }
+
+    /**
+     * Returns the section indexes by depth, in get_sections order within a depth, so every section
+     * comes after its parent
+     */
+    public int[] topDown() {
+        return IntStream.range(0, sectionIDs.length).boxed()
+                .sorted((first, second) -> Integer.compare(depths[first], depths[second]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    public long[] getCaseIDs(int section) {
+        return Arrays.copyOfRange(caseIDs, caseStarts[section], caseStarts[section + 1]);
+    }
+
+    public int getCaseCount() {
+        return caseIDs.length;
+    }
+}
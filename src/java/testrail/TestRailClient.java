@@ -0,0 +1,197 @@
+package testrail;
+
+import org.json.simple.JSONObject;
+import testrail.model.Case;
+import testrail.model.Plan;
+import testrail.model.Result;
+import testrail.model.Section;
+import testrail.model.Suite;
+import testrail.model.Test;
+import utils.LongLongMap;
+import utils.LongSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Typed facade over APIClient, returning model records instead of raw JSONObject/JSONArray.
+ *
+ * ID lists are decoded straight from the response stream into primitive arrays, without building
+ * JSONObjects. Streamed lists (cases, tests, plans) are paginated lazily, see APIClient.sendGetStream,
+ * and report failures as UncheckedIOException/UncheckedAPIException.
+ */
+public class TestRailClient {
+
+    private final APIClient client;
+
+    public TestRailClient(APIClient client) {
+        this.client = client;
+    }
+
+    public APIClient getAPIClient() {
+        return client;
+    }
+
+    public Plan getPlan(long planID) throws IOException, APIException {
+        return Plan.fromJSON((JSONObject) client.sendGet("get_plan/" + planID));
+    }
+
+    public CompletableFuture<Plan> getPlanAsync(long planID) {
+        return client.sendGetAsync("get_plan/" + planID).thenApply(plan -> Plan.fromJSON((JSONObject) plan));
+    }
+
+    /**
+     * Streams the plans of the project, see https://www.gurock.com/testrail/docs/api/reference/plans
+     *
+     * @param projectID: ID of the project
+     * @param filters:   Additional get_plans filters, e.g. "&created_by=1", empty for none
+     */
+    public Stream<Plan> streamPlans(long projectID, String filters) {
+        return client.sendGetStream("get_plans/" + projectID + filters).map(Plan::fromJSON);
+    }
+
+    public Suite getSuite(long suiteID) throws IOException, APIException {
+        return Suite.fromJSON((JSONObject) client.sendGet("get_suite/" + suiteID));
+    }
+
+    public Section getSection(long sectionID) throws IOException, APIException {
+        return Section.fromJSON((JSONObject) client.sendGet("get_section/" + sectionID));
+    }
+
+    public List<Section> getSections(long projectID, long suiteID) {
+        try (Stream<JSONObject> sections = client.sendGetStream("get_sections/" + projectID + "&suite_id=" + suiteID)) {
+            return sections.map(Section::fromJSON).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Streams all cases of the suite, across sections
+     */
+    public Stream<Case> streamCases(long projectID, long suiteID) {
+        return client.sendGetStream("get_cases/" + projectID + "&suite_id=" + suiteID).map(Case::fromJSON);
+    }
+
+    /**
+     * Streams the tests of the run with their latest status
+     */
+    public Stream<Test> streamTests(long runID) {
+        return client.sendGetStream("get_tests/" + runID).map(Test::fromJSON);
+    }
+
+    /**
+     * Returns the case IDs of the tests in the run, in run order
+     *
+     * @param runID:    ID of the run
+     * @param statuses: Comma-separated status IDs the tests must have, empty for all tests
+     */
+    public long[] getCaseIDs(long runID, String statuses) throws IOException, APIException {
+        LongStream.Builder caseIDs = LongStream.builder();
+        client.sendGetValues(getTestsUri(runID, statuses), "case_id", id -> caseIDs.add((Long) id));
+        return caseIDs.build().toArray();
+    }
+
+    public CompletableFuture<long[]> getCaseIDsAsync(long runID, String statuses) {
+        LongStream.Builder caseIDs = LongStream.builder();
+        return client.sendGetValuesAsync(getTestsUri(runID, statuses), "case_id", id -> caseIDs.add((Long) id))
+                .thenApply(ignored -> caseIDs.build().toArray());
+    }
+
+    /**
+     * Returns the latest status of every test of the run, by case ID, read with one get_tests
+     *
+     * @param runID: ID of the run
+     */
+    public CompletableFuture<LongLongMap> getCaseStatusesAsync(long runID) {
+        LongLongMap statuses = new LongLongMap();
+        return client.sendGetRowsAsync(getTestsUri(runID, ""), List.of("case_id", "status_id"), row -> {
+                    if (row[0] != null && row[1] != null) {
+                        statuses.put((Long) row[0], (Long) row[1]);
+                    }
+                })
+                .thenApply(ignored -> statuses);
+    }
+
+    /**
+     * Returns the IDs of the cases of the suite created or updated after the time
+     *
+     * @param updatedAfter: UNIX timestamp in seconds, as TestRail's created_on and updated_on
+     */
+    public CompletableFuture<long[]> getUpdatedCaseIDsAsync(long projectID, long suiteID, long updatedAfter) {
+        LongStream.Builder caseIDs = LongStream.builder();
+        return client.sendGetValuesAsync("get_cases/" + projectID + "&suite_id=" + suiteID + "&updated_after=" + updatedAfter,
+                        "id", id -> caseIDs.add((Long) id))
+                .thenApply(ignored -> caseIDs.build().toArray());
+    }
+
+    public LongSet getCaseIDSet(long runID, String statuses) throws IOException, APIException {
+        return LongSet.of(getCaseIDs(runID, statuses));
+    }
+
+    /**
+     * Returns the cases of any of the runs whose tests have one of the statuses, fetching the runs in parallel
+     *
+     * @param runIDs:   IDs of the runs, e.g. the runs of a plan
+     * @param statuses: Comma-separated status IDs the tests must have, e.g. "5" for failed tests
+     */
+    public LongSet getCaseIDSet(List<Long> runIDs, String statuses) throws IOException, APIException {
+        List<CompletableFuture<long[]>> runCases = new ArrayList<>(runIDs.size());
+        for (Long runID : runIDs) {
+            runCases.add(getCaseIDsAsync(runID, statuses));
+        }
+        LongSet caseIDs = new LongSet();
+        for (CompletableFuture<long[]> cases : runCases) {
+            caseIDs.addAll(APIClient.await(cases));
+        }
+        return caseIDs;
+    }
+
+    /**
+     * Maps every case of the runs to the first of the runs (in list order) that has it. The tests of
+     * all runs are fetched in parallel, bounded by the shared transport's connection limit.
+     *
+     * @param runIDs: IDs of the runs, e.g. the runs of a plan
+     */
+    public LongLongMap getCaseRunIndex(List<Long> runIDs) throws IOException, APIException {
+        List<CompletableFuture<long[]>> runCases = new ArrayList<>(runIDs.size());
+        for (Long runID : runIDs) {
+            runCases.add(getCaseIDsAsync(runID, ""));
+        }
+        LongLongMap index = new LongLongMap();
+        for (int i = 0; i < runIDs.size(); i++) {
+            long runID = runIDs.get(i);
+            for (long caseID : APIClient.await(runCases.get(i))) {
+                index.putIfAbsent(caseID, runID);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the statuses of all results of the case in the run, newest first; 0 for results
+     * without status
+     */
+    public int[] getResultStatuses(long runID, long caseID) throws IOException, APIException {
+        IntStream.Builder statuses = IntStream.builder();
+        client.sendGetValues("get_results_for_case/" + runID + "/" + caseID, "status_id",
+                status -> statuses.add(status == null ? 0 : ((Long) status).intValue()));
+        return statuses.build().toArray();
+    }
+
+    public List<Result> getResultsForCase(long runID, long caseID) {
+        try (Stream<JSONObject> results = client.sendGetStream("get_results_for_case/" + runID + "/" + caseID)) {
+            return results.map(Result::fromJSON).collect(Collectors.toList());
+        }
+    }
+
+    private static String getTestsUri(long runID, String statuses) {
+        return statuses == null || statuses.isEmpty()
+                ? "get_tests/" + runID
+                : "get_tests/" + runID + "&status_id=" + statuses;
+    }
+}
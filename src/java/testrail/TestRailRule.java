@@ -1,16 +1,27 @@
 package testrail;
 
 import hooks.TestRailHook;
+import utils.LongLongMap;
+import utils.LongSet;
 import utils.PropertyUtils;
+import utils.SparseBitSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import testrail.model.Plan;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class TestRailRule {
     private static final Logger logger = LogManager.getLogger(TestRailHook.class);
@@ -21,6 +32,17 @@ public class TestRailRule {
     private static String TESTRAIL_PASSWORD = PropertyUtils.getProperty("testrail.password");
     private static String TESTRAIL_USER_ID = PropertyUtils.getProperty("testrail.userid");
 
+    // Incremental reruns copy only the base plan's tests with one of the rerun statuses (default retest and
+    // failed) and the cases updated since the base plan's run was created
+    private static final boolean RERUN_INCREMENTAL = Boolean.getBoolean("testrail.rerun.incremental");
+    private static final String RERUN_STATUSES = System.getProperty("testrail.rerun.statuses", "4,5");
+
+    // Directory of the plan name indexes, empty to scan get_plans on every lookup
+    private static final String PLAN_INDEX_DIR = System.getProperty("testrail.plan.index.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "testrail-plans").toString());
+
+    private static final int BACKUP_MAX_IN_FLIGHT = Integer.getInteger("testrail.backup.max.in.flight", 8);
+
     private static String current_date = java.util.Calendar.getInstance().getTime().toString();
     private static String TEST_RUN_ID;
 
@@ -70,10 +92,26 @@ public class TestRailRule {
      * @throws Exception
      */
     public static ArrayList<Long> getRunIDs(String projectID, String planTitle, String basePlanID, String desiredRunIDs) throws Exception {
-
-        APIClient client = setApiClient();
         ArrayList<Long> runIDs = new ArrayList<>();
 
+        // Exctract child run ids from the plan
+        for (long runID : Plan.fromJSON(getOrCreatePlan(setApiClient(), projectID, planTitle, basePlanID, desiredRunIDs)).runIds()) {
+            runIDs.add(runID);
+        }
+        return runIDs;
+    }
+
+    /**
+     * Returns the plan with name planTitle, created as copy of base test plan if not already created.
+     *
+     * @param client:     The APIClient used to make the API requests
+     * @param projectID:  ID of test rail project
+     * @param planTitle:  Name of the plan to be created
+     * @param basePlanID: ID of the base test plan, whose copy need to be created
+     * @return The plan, see get_plan
+     */
+    public static JSONObject getOrCreatePlan(APIClient client, String projectID, String planTitle, String basePlanID,
+                                             String desiredRunIDs) throws IOException, APIException {
         /*
          * status ID string is for all result statuses. String can be adjusted for specific test IDs.
          * See http://docs.gurock.com/testrail-api2/reference-statuses for additional information
@@ -81,20 +119,17 @@ public class TestRailRule {
         String statuses = "1,2,3,4,5,6,7,8,9,10,11,12";
         JSONObject plan;
         String planID = isPlanAlreadyCreated(client, projectID, planTitle);
-        if (planID.isEmpty())
+        if (planID.isEmpty()) {
             plan = rerunPlan(client, basePlanID, planTitle, statuses, desiredRunIDs);
-        else
+            if (!PLAN_INDEX_DIR.isBlank()) {
+                PlanNameIndex index = PlanNameIndex.load(Paths.get(PLAN_INDEX_DIR), projectID, TESTRAIL_USER_ID);
+                Object createdOn = plan.get("created_on");
+                index.put(planTitle, (Long) plan.get("id"), createdOn == null ? 0 : (Long) createdOn);
+                saveIndex(index);
+            }
+        } else
             plan = getPlan(client, planID);
-
-        // Exctract child run ids from the plan
-        ArrayList entries = (ArrayList) plan.get("entries");
-        for (Object object : entries) {
-            JSONObject entry = (JSONObject) object;
-            JSONArray runArr = (JSONArray) entry.get("runs");
-            JSONObject run = (JSONObject) runArr.get(0);
-            runIDs.add((Long) run.get("id"));
-        }
-        return runIDs;
+        return plan;
     }
 
     /**
@@ -106,7 +141,8 @@ public class TestRailRule {
      * @param planID   Valid integer ID of an existing test plan in TestRail
      * @param title    Title of the new test plan to be created. Cannot be an empty string.
      * @param statuses Comma-separated string of integer status IDs in TestRail. These are the status IDs
-     *                 of the existing tests which will be included in the new test run.
+     *                 of the existing tests which will be included in the new test run. With
+     *                 'testrail.rerun.incremental' only those also failed, to retest or updated since are.
      * @return The response data from add_run. See http://docs.gurock.com/testrail-api2/reference-runs#add_plan
      * @throws APIException
      * @throws IOException
@@ -121,35 +157,115 @@ public class TestRailRule {
         long project_id = (Long) run_details.get("project_id");
 
         // Store plan's properties for the new test plan
-        post_body.put("name", (String) title);
+        post_body.put("name", title);
         post_body.put("description", (String) run_details.get("description"));
 
         ArrayList entries = (ArrayList) run_details.get("entries");
         ArrayList requiredEntries = new ArrayList();
+        // Test case ids of the previous runs in the base plan are fetched for all entries at once
+        TestRailClient testRail = new TestRailClient(client);
+        List<CompletableFuture<long[]>> entryCases = new ArrayList<>();
         for (Object object : entries) {
             JSONObject entry = (JSONObject) object;
             JSONArray runArr = (JSONArray) entry.get("runs");
+            if (runArr == null || runArr.isEmpty()) {
+                // Nothing to copy, as Plan.runIds() leaves such entries out
+                logger.info("Entry " + entry.get("name") + " of the base plan has no runs, left out of the plan");
+                continue;
+            }
             JSONObject run = (JSONObject) runArr.get(0);
             String runName = String.valueOf(run.get("name"));
             if (desiredRunIDs.isEmpty() || desiredRunIDs.contains(runName)) {
-                Long suiteID = (Long) entry.get("suite_id");
-
-                // Get test case ids from previous runs in the base plan
-                JSONArray case_ids = getCaseIDsForRun(client, (Long) run.get("id"), statuses);
-
-                // Update entry
-                entry.clear();
-                entry.put("include_all", Boolean.FALSE);
-                entry.put("case_ids", case_ids);
-                entry.put("name", runName);
-                entry.put("suite_id", suiteID);
                 requiredEntries.add(entry);
+                entryCases.add(RERUN_INCREMENTAL
+                        ? getChangedCaseIDsAsync(testRail, project_id, entry, run, statuses)
+                        : testRail.getCaseIDsAsync((Long) run.get("id"), statuses));
             }
         }
+        // Entries are updated in plan order as their tests arrive, every required entry has a run
+        for (int i = 0; i < requiredEntries.size(); i++) {
+            JSONObject entry = (JSONObject) requiredEntries.get(i);
+            JSONObject run = (JSONObject) ((JSONArray) entry.get("runs")).get(0);
+            String runName = String.valueOf(run.get("name"));
+            Long suiteID = (Long) entry.get("suite_id");
+
+            JSONArray case_ids = new JSONArray();
+            for (long caseID : APIClient.await(entryCases.get(i))) {
+                case_ids.add(caseID);
+            }
+
+            // Update entry
+            entry.clear();
+            entry.put("include_all", Boolean.FALSE);
+            entry.put("case_ids", case_ids);
+            entry.put("name", runName);
+            entry.put("suite_id", suiteID);
+        }
+        if (RERUN_INCREMENTAL) {
+            // A run needs at least one case
+            requiredEntries.removeIf(entry -> {
+                boolean empty = ((JSONArray) ((JSONObject) entry).get("case_ids")).isEmpty();
+                if (empty) {
+                    logger.info("Nothing to rerun in " + ((JSONObject) entry).get("name") + ", run left out of the plan");
+                }
+                return empty;
+            });
+        }
         post_body.put("entries", requiredEntries);
         return (JSONObject) client.sendPost("add_plan/" + project_id, post_body);
     }
 
+    /**
+     * Returns the cases of the entry's run to rerun, as set algebra on the case IDs:
+     * (tests with a rerun status + cases updated since the run was created) limited to the tests with the statuses.
+     * The tests are read once with their status, both test sets are taken from it
+     *
+     * @param testRail:  Client of the requests
+     * @param projectID: ID of the project of the plan
+     * @param entry:     Entry of the base plan
+     * @param run:       First run of the entry
+     * @param statuses:  Comma-separated status IDs of the tests that may be rerun
+     */
+    private static CompletableFuture<long[]> getChangedCaseIDsAsync(TestRailClient testRail, long projectID, JSONObject entry,
+                                                                   JSONObject run, String statuses) {
+        long runID = (Long) run.get("id");
+        Object createdOn = run.get("created_on");
+        LongSet scopeStatuses = parseStatuses(statuses);
+        LongSet rerunStatuses = parseStatuses(RERUN_STATUSES);
+        CompletableFuture<LongLongMap> tests = testRail.getCaseStatusesAsync(runID);
+        CompletableFuture<long[]> updated = createdOn == null
+                ? CompletableFuture.completedFuture(new long[0])
+                : testRail.getUpdatedCaseIDsAsync(projectID, (Long) entry.get("suite_id"), (Long) createdOn);
+        return tests.thenCombine(updated, (caseStatuses, changed) -> {
+            SparseBitSet scope = new SparseBitSet();
+            SparseBitSet rerun = new SparseBitSet();
+            caseStatuses.forEach((caseID, statusID) -> {
+                if (scopeStatuses.isEmpty() || scopeStatuses.contains(statusID)) {
+                    scope.add(caseID);
+                }
+                if (rerunStatuses.contains(statusID)) {
+                    rerun.add(caseID);
+                }
+            });
+            long[] selected = rerun.or(SparseBitSet.of(changed)).and(scope).toArray();
+            logger.info(run.get("name") + ": " + selected.length + " of " + scope.size() + " cases to rerun");
+            return selected;
+        });
+    }
+
+    // Comma-separated status IDs as a set, empty for none
+    private static LongSet parseStatuses(String statuses) {
+        LongSet parsed = new LongSet();
+        if (statuses != null) {
+            for (String status : statuses.split(",")) {
+                if (!status.isBlank()) {
+                    parsed.add(Long.parseLong(status.trim()));
+                }
+            }
+        }
+        return parsed;
+    }
+
     /**
      * Get details of the plan with planID, refer https://www.gurock.com/testrail/docs/api/reference/plans
      *
@@ -178,8 +294,11 @@ public class TestRailRule {
      */
     public static JSONArray getCaseIDsForRun(APIClient client, Long runID, String statuses) throws
             APIException, IOException {
-        JSONArray response = (JSONArray) client.sendGet("get_tests/" + runID + "&status_id=" + statuses);
-        return getValuesForKey("case_id", response);
+        JSONArray caseIDs = new JSONArray();
+        for (long caseID : new TestRailClient(client).getCaseIDs(runID, statuses)) {
+            caseIDs.add(caseID);
+        }
+        return caseIDs;
     }
 
     /**
@@ -199,8 +318,19 @@ public class TestRailRule {
         return value_list;
     }
 
+    // The index is only a shortcut, TestRail is asked again if it can't be saved
+    private static void saveIndex(PlanNameIndex index) {
+        try {
+            index.save();
+        } catch (IOException exception) {
+            logger.warn("Could not save the plan name index: " + exception);
+        }
+    }
+
     /**
-     * Returns the id of the plan with name 'title' if it is already present in the project with id 'projectID'
+     * Returns the id of the plan with name 'title' if it is already present in the project with id 'projectID'.
+     * Looked up in the plan name index in 'testrail.plan.index.dir', refreshed with the plans created since
+     * its last refresh; with an empty directory the plans are scanned until the plan is found
      *
      * @param client:    The APIClient used to make the API requests. Should be initialized prior to calling
      *                   this function.
@@ -211,16 +341,23 @@ public class TestRailRule {
      * @throws APIException
      */
     public static String isPlanAlreadyCreated(APIClient client, String projectID, String title) throws IOException, APIException {
-        JSONArray plans = (JSONArray) client.sendGet("get_plans/" + projectID + "&created_by=" + TESTRAIL_USER_ID);
-        String planID = "";
-        for (int i = 0; i < plans.size(); ++i) {
-            JSONObject result = (JSONObject) plans.get(i);
-            if (result.get("name").equals(title)) {
-                planID = result.get("id").toString();
-                break;
-            }
+        if (!PLAN_INDEX_DIR.isBlank()) {
+            PlanNameIndex index = PlanNameIndex.load(Paths.get(PLAN_INDEX_DIR), projectID, TESTRAIL_USER_ID);
+            String planID = index.find(client, title);
+            saveIndex(index);
+            return planID;
+        }
+        // Pages are fetched only until the plan is found
+        try (Stream<JSONObject> plans = client.sendGetStream("get_plans/" + projectID + "&created_by=" + TESTRAIL_USER_ID)) {
+            return plans.filter(plan -> title.equals(plan.get("name")))
+                    .map(plan -> plan.get("id").toString())
+                    .findFirst()
+                    .orElse("");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
         }
-        return planID;
     }
 
     /**
@@ -237,40 +374,66 @@ public class TestRailRule {
      */
     public static long createBackupOfSuite(APIClient client, long projectID, long suiteID, String backupName) throws IOException, APIException {
 
-        // Get the previous suite details
+        // Read the whole suite before writing: its sections, and all its cases in one paged stream
         JSONObject suiteDetails = getSuite(client, suiteID);
+        SuiteTree tree = SuiteTree.read(client, projectID, suiteID);
 
         // Create new suite
         JSONObject newSuiteDetails = addSuite(client, projectID, suiteDetails.get("name") + "-" + backupName, (String) suiteDetails.get("description"));
         long newSuiteID = (Long) newSuiteDetails.get("id");
         logger.info("NEW Suite ID for " + suiteDetails.get("name") + ": " + newSuiteID);
 
-        // Get sections of previouse suite, and add them to new suite
-        JSONArray sections = (JSONArray) getSections(client, projectID, suiteID);
-        HashMap<Long, Long> sectionIDs = new HashMap<>();
-        for (int i = 0; i < sections.size(); ++i) {
-            JSONObject section = (JSONObject) sections.get(i);
-            long sectionID = (long) section.get("id");
-
-            // Get test cases of section
-            JSONArray testCases = (JSONArray) getCases(client, projectID, suiteID, sectionID);
-
-            // Create section in new suite with correct hierarchy
-            JSONObject newSection;
-            if (section.get("parent_id") == null) {
-                newSection = addSection(client, projectID, newSuiteID, (String) section.get("name"), null);
-            } else {
-                newSection = addSection(client, projectID, newSuiteID, (String) section.get("name"), sectionIDs.get(section.get("parent_id")));
-            }
+        // Add the sections to new suite with correct hierarchy and copy their test cases
+        copySections(client, projectID, newSuiteID, tree);
+        return newSuiteID;
+    }
 
-            // Copy test cases if present
-            if (testCases.size() > 0)
-                copyCasesToSection(client, (Long) newSection.get("id"), getCaseIDs(testCases));
+    /**
+     * Creates the sections of the tree in the suite with the same hierarchy and copies their test cases.
+     * A section is created as soon as its parent exists and its cases are copied as soon as it exists,
+     * so siblings are created at the same time and the time taken follows the depth of the tree rather
+     * than the number of sections. At most 'testrail.backup.max.in.flight' requests are sent at a time.
+     * Siblings may therefore be ordered differently than in the original suite.
+     *
+     * @param client:     The APIClient used to make the API requests
+     * @param projectID:  ID of the project
+     * @param newSuiteID: ID of the suite the sections are created in
+     * @param tree:       Sections and test cases to copy
+     * @throws IOException
+     * @throws APIException
+     */
+    private static void copySections(APIClient client, long projectID, long newSuiteID, SuiteTree tree) throws IOException, APIException {
+        RequestWindow window = new RequestWindow(BACKUP_MAX_IN_FLIGHT);
+        List<CompletableFuture<Long>> newSectionIDs = new ArrayList<>(Collections.nCopies(tree.size(), null));
+        CompletableFuture<?>[] requests = new CompletableFuture<?>[tree.size() * 2];
+        int count = 0;
+        for (int section : tree.topDown()) {
+            int parent = tree.getParent(section);
+            CompletableFuture<Long> parentID = parent < 0 ? CompletableFuture.completedFuture(null) : newSectionIDs.get(parent);
+            CompletableFuture<Long> newSectionID = parentID
+                    .thenCompose(id -> {
+                        Map post_body = new HashMap();
+                        post_body.put("suite_id", newSuiteID);
+                        post_body.put("name", tree.getName(section));
+                        if (id != null)
+                            post_body.put("parent_id", id);
+                        return window.submit(() -> client.sendPostAsync("add_section/" + projectID, post_body));
+                    })
+                    .thenApply(newSection -> (Long) ((JSONObject) newSection).get("id"));
+            newSectionIDs.set(section, newSectionID);
+            requests[count++] = newSectionID;
 
-            // Store section ids
-            sectionIDs.put((Long) sectionID, (Long) newSection.get("id"));
+            // Copy test cases if present
+            long[] caseIDs = tree.getCaseIDs(section);
+            if (caseIDs.length > 0) {
+                requests[count++] = newSectionID.thenCompose(id -> {
+                    Map post_body = new HashMap();
+                    post_body.put("case_ids", getCaseIDs(caseIDs));
+                    return window.submit(() -> client.sendPostAsync("copy_cases_to_section/" + id, post_body));
+                });
+            }
         }
-        return newSuiteID;
+        APIClient.await(CompletableFuture.allOf(Arrays.copyOf(requests, count)));
     }
 
     /**
@@ -351,7 +514,7 @@ public class TestRailRule {
      * @throws APIException
      */
     public static JSONArray getSections(APIClient client, long projectID, long suiteID) throws IOException, APIException {
-        return (JSONArray) client.sendGet("get_sections/" + projectID + "&suite_id=" + suiteID);
+        return getAll(client, "get_sections/" + projectID + "&suite_id=" + suiteID);
     }
 
     /**
@@ -419,21 +582,42 @@ public class TestRailRule {
      * @throws APIException
      */
     public static JSONArray getCases(APIClient client, long projectID, long suiteID, long sectionID) throws IOException, APIException {
-        return (JSONArray) client.sendGet("get_cases/" + projectID + "&suite_id=" + suiteID + "&section_id=" + sectionID);
+        return getAll(client, "get_cases/" + projectID + "&suite_id=" + suiteID + "&section_id=" + sectionID);
+    }
+
+    /**
+     * Returns the elements of all pages of a bulk API method (get_cases, get_sections, ...) as one array
+     *
+     * @param client: The APIClient used to make the API requests. Should be initialized prior to calling
+     *                this function.
+     * @param uri:    API method including parameters
+     * @return Elements of all pages in response order
+     * @throws IOException
+     * @throws APIException
+     */
+    private static JSONArray getAll(APIClient client, String uri) throws IOException, APIException {
+        try (Stream<JSONObject> elements = client.sendGetStream(uri)) {
+            JSONArray all = new JSONArray();
+            elements.forEach(all::add);
+            return all;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (UncheckedAPIException e) {
+            throw e.getCause();
+        }
     }
 
     /**
-     * Take IDs of test cases from JSONArray and convert them into comma seperated string
+     * Convert IDs of test cases into comma seperated string
      *
-     * @param testCases : Array of test cases
+     * @param caseIDs : IDs of test cases
      * @return String of comma seperated test case IDs
      */
-    private static String getCaseIDs(JSONArray testCases) {
-        StringBuilder caseIDs = new StringBuilder();
-        for (int i = 0; i < testCases.size(); ++i) {
-            JSONObject result = (JSONObject) testCases.get(i);
-            caseIDs.append(result.get("id")).append(",");
+    private static String getCaseIDs(long[] caseIDs) {
+        StringBuilder joined = new StringBuilder();
+        for (long caseID : caseIDs) {
+            joined.append(caseID).append(",");
         }
-        return caseIDs.deleteCharAt(caseIDs.lastIndexOf(",")).toString();
+        return joined.deleteCharAt(joined.length() - 1).toString();
     }
 }
@@ -0,0 +1,18 @@
+package testrail;
+
+/**
+ * Wraps an APIException where a checked exception cannot be thrown, e.g. from the Stream/Iterator
+ * returned by APIClient.sendGetStream.
+ */
+public class UncheckedAPIException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedAPIException(APIException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized APIException getCause() {
+        return (APIException) super.getCause();
+    }
+}
@@ -0,0 +1,20 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail test case, refer https://www.gurock.com/testrail/docs/api/reference/cases
+ *
+ * @param updatedOn: Unix timestamp of the last change of the case
+ */
+public record Case(long id, long suiteId, long sectionId, String title, long updatedOn) {
+
+    public static Case fromJSON(JSONObject testCase) {
+        return new Case(
+                JSONFields.getLong(testCase, "id"),
+                JSONFields.getLong(testCase, "suite_id"),
+                JSONFields.getLong(testCase, "section_id"),
+                JSONFields.getString(testCase, "title"),
+                JSONFields.getLong(testCase, "updated_on"));
+    }
+}
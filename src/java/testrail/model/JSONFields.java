@@ -0,0 +1,27 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Null-safe field access for decoding TestRail JSON objects into model records.
+ */
+final class JSONFields {
+
+    private JSONFields() {
+    }
+
+    static long getLong(JSONObject object, String key) {
+        Object value = object.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+
+    static int getInt(JSONObject object, String key) {
+        Object value = object.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    static String getString(JSONObject object, String key) {
+        Object value = object.get(key);
+        return value == null ? null : value.toString();
+    }
+}
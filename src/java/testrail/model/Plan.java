@@ -0,0 +1,45 @@
+package testrail.model;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * TestRail plan, refer https://www.gurock.com/testrail/docs/api/reference/plans
+ *
+ * Plans returned by get_plans carry no entries.
+ */
+public record Plan(long id, long projectId, String name, String description, long createdOn, List<PlanEntry> entries) {
+
+    public Plan {
+        entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the IDs of the first run of every entry, in entry order; entries without runs are left out
+     */
+    public long[] runIds() {
+        return entries.stream().map(PlanEntry::firstRun).filter(Objects::nonNull).mapToLong(Run::id).toArray();
+    }
+
+    public static Plan fromJSON(JSONObject plan) {
+        JSONArray entryArr = (JSONArray) plan.get("entries");
+        List<PlanEntry> entries = new ArrayList<>(entryArr == null ? 0 : entryArr.size());
+        if (entryArr != null) {
+            for (Object entry : entryArr) {
+                entries.add(PlanEntry.fromJSON((JSONObject) entry));
+            }
+        }
+        return new Plan(
+                JSONFields.getLong(plan, "id"),
+                JSONFields.getLong(plan, "project_id"),
+                JSONFields.getString(plan, "name"),
+                JSONFields.getString(plan, "description"),
+                JSONFields.getLong(plan, "created_on"),
+                entries);
+    }
+}
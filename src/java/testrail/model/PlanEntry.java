@@ -0,0 +1,41 @@
+package testrail.model;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Entry of a TestRail plan, grouping the runs of one suite, refer https://www.gurock.com/testrail/docs/api/reference/plans
+ */
+public record PlanEntry(String id, long suiteId, String name, List<Run> runs) {
+
+    public PlanEntry {
+        runs = Collections.unmodifiableList(runs);
+    }
+
+    /**
+     * Returns the first run of the entry, null for an entry without runs; plans created by TestRailRule
+     * have exactly one run per entry
+     */
+    public Run firstRun() {
+        return runs.isEmpty() ? null : runs.get(0);
+    }
+
+    public static PlanEntry fromJSON(JSONObject entry) {
+        JSONArray runArr = (JSONArray) entry.get("runs");
+        List<Run> runs = new ArrayList<>(runArr == null ? 0 : runArr.size());
+        if (runArr != null) {
+            for (Object run : runArr) {
+                runs.add(Run.fromJSON((JSONObject) run));
+            }
+        }
+        return new PlanEntry(
+                JSONFields.getString(entry, "id"),
+                JSONFields.getLong(entry, "suite_id"),
+                JSONFields.getString(entry, "name"),
+                runs);
+    }
+}
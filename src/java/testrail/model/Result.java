@@ -0,0 +1,20 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail test result, refer https://www.gurock.com/testrail/docs/api/reference/results
+ *
+ * @param statusId: Status of the result, 0 for results that only add a comment
+ */
+public record Result(long id, long testId, int statusId, String comment, long createdOn) {
+
+    public static Result fromJSON(JSONObject result) {
+        return new Result(
+                JSONFields.getLong(result, "id"),
+                JSONFields.getLong(result, "test_id"),
+                JSONFields.getInt(result, "status_id"),
+                JSONFields.getString(result, "comment"),
+                JSONFields.getLong(result, "created_on"));
+    }
+}
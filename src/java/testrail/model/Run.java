@@ -0,0 +1,20 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail run, refer https://www.gurock.com/testrail/docs/api/reference/runs
+ *
+ * @param planId: ID of the plan the run belongs to, 0 for runs outside of plans
+ */
+public record Run(long id, long suiteId, long planId, String name, long createdOn) {
+
+    public static Run fromJSON(JSONObject run) {
+        return new Run(
+                JSONFields.getLong(run, "id"),
+                JSONFields.getLong(run, "suite_id"),
+                JSONFields.getLong(run, "plan_id"),
+                JSONFields.getString(run, "name"),
+                JSONFields.getLong(run, "created_on"));
+    }
+}
@@ -0,0 +1,26 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail section, refer https://www.gurock.com/testrail/docs/api/reference/sections
+ *
+ * @param parentId: ID of the parent section, 0 for sections at the root of the suite
+ * @param depth:    Level in the section tree, 0 for sections at the root of the suite
+ */
+public record Section(long id, long suiteId, long parentId, int depth, int displayOrder, String name) {
+
+    public boolean isRoot() {
+        return parentId == 0;
+    }
+
+    public static Section fromJSON(JSONObject section) {
+        return new Section(
+                JSONFields.getLong(section, "id"),
+                JSONFields.getLong(section, "suite_id"),
+                JSONFields.getLong(section, "parent_id"),
+                JSONFields.getInt(section, "depth"),
+                JSONFields.getInt(section, "display_order"),
+                JSONFields.getString(section, "name"));
+    }
+}
@@ -0,0 +1,17 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail suite, refer https://www.gurock.com/testrail/docs/api/reference/suites
+ */
+public record Suite(long id, long projectId, String name, String description) {
+
+    public static Suite fromJSON(JSONObject suite) {
+        return new Suite(
+                JSONFields.getLong(suite, "id"),
+                JSONFields.getLong(suite, "project_id"),
+                JSONFields.getString(suite, "name"),
+                JSONFields.getString(suite, "description"));
+    }
+}
@@ -0,0 +1,20 @@
+package testrail.model;
+
+import org.json.simple.JSONObject;
+
+/**
+ * TestRail test, i.e. a case inside a run, refer https://www.gurock.com/testrail/docs/api/reference/tests
+ *
+ * @param statusId: Latest status of the test (1 passed, 5 failed, ...)
+ */
+public record Test(long id, long caseId, long runId, int statusId, String title) {
+
+    public static Test fromJSON(JSONObject test) {
+        return new Test(
+                JSONFields.getLong(test, "id"),
+                JSONFields.getLong(test, "case_id"),
+                JSONFields.getLong(test, "run_id"),
+                JSONFields.getInt(test, "status_id"),
+                JSONFields.getString(test, "title"));
+    }
+}
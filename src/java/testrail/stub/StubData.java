@@ -0,0 +1,432 @@
+package testrail.stub;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * In-memory TestRail entities behind TestRailStubServer. All access is synchronized on the instance
+ * and answers are fresh copies, so callers can't change the stored state.
+ *
+ * List methods return the page starting at 'offset' with up to 'limit' + 1 elements; the extra
+ * element only tells the caller that there is a next page.
+ */
+class StubData {
+
+    private long nextId = 1;
+
+    private final Map<Long, JSONObject> suites = new LinkedHashMap<>();
+    private final Map<Long, JSONObject> sections = new LinkedHashMap<>();
+    private final Map<Long, JSONObject> cases = new HashMap<>();
+    // suite id -> case id -> case, in creation order
+    private final Map<Long, Map<Long, JSONObject>> suiteCases = new HashMap<>();
+    private final Map<Long, JSONObject> plans = new LinkedHashMap<>();
+    private final Map<Long, JSONObject> runs = new HashMap<>();
+    // run id -> case id -> test
+    private final Map<Long, Map<Long, JSONObject>> tests = new HashMap<>();
+    // test id -> results, oldest first
+    private final Map<Long, List<JSONObject>> results = new HashMap<>();
+    private final Map<Long, byte[]> attachments = new HashMap<>();
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    // ------------------------------------------------------------------ suites
+
+    synchronized JSONObject getSuite(long suiteID) {
+        return copy(require(suites, suiteID, "suite_id"));
+    }
+
+    synchronized JSONObject addSuite(long projectID, String name, String description) {
+        long suiteID = nextId++;
+        JSONObject suite = new JSONObject();
+        suite.put("id", suiteID);
+        suite.put("project_id", projectID);
+        suite.put("name", name);
+        suite.put("description", description);
+        suites.put(suiteID, suite);
+        suiteCases.put(suiteID, new LinkedHashMap<>());
+        return copy(suite);
+    }
+
+    synchronized JSONObject updateSuite(long suiteID, JSONObject data) {
+        JSONObject suite = require(suites, suiteID, "suite_id");
+        if (data.containsKey("name")) {
+            suite.put("name", data.get("name"));
+        }
+        if (data.containsKey("description")) {
+            suite.put("description", data.get("description"));
+        }
+        return copy(suite);
+    }
+
+    synchronized void deleteSuite(long suiteID) {
+        require(suites, suiteID, "suite_id");
+        suites.remove(suiteID);
+        sections.values().removeIf(section -> (Long) section.get("suite_id") == suiteID);
+        cases.keySet().removeAll(suiteCases.remove(suiteID).keySet());
+    }
+
+    // ---------------------------------------------------------------- sections
+
+    synchronized JSONObject getSection(long sectionID) {
+        return copy(require(sections, sectionID, "section_id"));
+    }
+
+    synchronized List<JSONObject> getSections(long suiteID, int offset, int limit) {
+        require(suites, suiteID, "suite_id");
+        return page(sections.values(), section -> (Long) section.get("suite_id") == suiteID, offset, limit);
+    }
+
+    synchronized JSONObject addSection(long suiteID, String name, Long parentID) {
+        require(suites, suiteID, "suite_id");
+        long depth = 0;
+        if (parentID != null) {
+            depth = (Long) require(sections, parentID, "parent_id").get("depth") + 1;
+        }
+        long sectionID = nextId++;
+        JSONObject section = new JSONObject();
+        section.put("id", sectionID);
+        section.put("suite_id", suiteID);
+        section.put("parent_id", parentID);
+        section.put("depth", depth);
+        section.put("display_order", (long) sections.size() + 1);
+        section.put("name", name);
+        sections.put(sectionID, section);
+        return copy(section);
+    }
+
+    synchronized void copyCasesToSection(long sectionID, long[] caseIDs) {
+        JSONObject section = require(sections, sectionID, "section_id");
+        for (long caseID : caseIDs) {
+            require(cases, caseID, "case_ids");
+        }
+        for (long caseID : caseIDs) {
+            addCase((Long) section.get("suite_id"), sectionID, (String) cases.get(caseID).get("title"));
+        }
+    }
+
+    // ------------------------------------------------------------------- cases
+
+    synchronized long addCase(long suiteID, long sectionID, String title) {
+        long caseID = nextId++;
+        JSONObject testCase = new JSONObject();
+        testCase.put("id", caseID);
+        testCase.put("suite_id", suiteID);
+        testCase.put("section_id", sectionID);
+        testCase.put("title", title);
+        testCase.put("updated_on", now());
+        cases.put(caseID, testCase);
+        suiteCases.get(suiteID).put(caseID, testCase);
+        return caseID;
+    }
+
+    /**
+     * @param sectionID:    Only cases of this section, null for all sections
+     * @param updatedAfter: Only cases changed after this timestamp, null for all
+     */
+    synchronized List<JSONObject> getCases(long suiteID, Long sectionID, Long updatedAfter, int offset, int limit) {
+        require(suites, suiteID, "suite_id");
+        return page(suiteCases.get(suiteID).values(), testCase ->
+                (sectionID == null || (Long) testCase.get("section_id") == (long) sectionID)
+                        && (updatedAfter == null || (Long) testCase.get("updated_on") > updatedAfter), offset, limit);
+    }
+
+    /**
+     * Marks the case as edited now, for get_cases&updated_after
+     */
+    synchronized void touchCase(long caseID) {
+        require(cases, caseID, "case_id").put("updated_on", now());
+    }
+
+    // ------------------------------------------------------------------- plans
+
+    synchronized JSONObject getPlan(long planID) {
+        JSONObject plan = copy(require(plans, planID, "plan_id"));
+        JSONArray entries = new JSONArray();
+        for (Object entry : (JSONArray) plan.get("entries")) {
+            entries.add(entryView((JSONObject) entry));
+        }
+        plan.put("entries", entries);
+        return plan;
+    }
+
+    /**
+     * Plans of the project without their entries, newest first like get_plans
+     */
+    synchronized List<JSONObject> getPlans(long projectID, Long createdBy, Long createdAfter, int offset, int limit) {
+        List<JSONObject> newestFirst = new ArrayList<>(plans.values());
+        Collections.reverse(newestFirst);
+        List<JSONObject> found = page(newestFirst, plan -> (Long) plan.get("project_id") == projectID
+                && (createdBy == null || createdBy.equals(plan.get("created_by")))
+                && (createdAfter == null || (Long) plan.get("created_on") > createdAfter), offset, limit);
+        found.forEach(plan -> plan.remove("entries"));
+        return found;
+    }
+
+    synchronized JSONObject addPlan(long projectID, JSONObject data, long createdBy) {
+        long planID = nextId++;
+        JSONObject plan = new JSONObject();
+        plan.put("id", planID);
+        plan.put("project_id", projectID);
+        plan.put("name", data.get("name"));
+        plan.put("description", data.get("description"));
+        plan.put("created_on", now());
+        plan.put("created_by", createdBy);
+        plan.put("entries", new JSONArray());
+        plans.put(planID, plan);
+        JSONArray entries = (JSONArray) data.get("entries");
+        if (entries != null) {
+            for (Object entry : entries) {
+                addEntry(plan, (JSONObject) entry);
+            }
+        }
+        return getPlan(planID);
+    }
+
+    synchronized JSONObject addPlanEntry(long planID, JSONObject data) {
+        return entryView(addEntry(require(plans, planID, "plan_id"), data));
+    }
+
+    private JSONObject addEntry(JSONObject plan, JSONObject data) {
+        long suiteID = toLong(data.get("suite_id"));
+        JSONObject suite = require(suites, suiteID, "suite_id");
+        String name = data.get("name") != null ? data.get("name").toString() : (String) suite.get("name");
+
+        long[] caseIDs;
+        if (Boolean.FALSE.equals(data.get("include_all"))) {
+            caseIDs = toLongs(data.get("case_ids"));
+        } else {
+            caseIDs = suiteCases.get(suiteID).keySet().stream().mapToLong(Long::longValue).toArray();
+        }
+        long runID = addRun(suiteID, (Long) plan.get("id"), name, caseIDs);
+
+        JSONObject entry = new JSONObject();
+        entry.put("id", "entry-" + nextId++);
+        entry.put("suite_id", suiteID);
+        entry.put("name", name);
+        JSONArray runIDs = new JSONArray();
+        runIDs.add(runID);
+        entry.put("runs", runIDs);
+        ((JSONArray) plan.get("entries")).add(entry);
+        return entry;
+    }
+
+    // Stored entries hold run IDs, answers hold the runs
+    private JSONObject entryView(JSONObject entry) {
+        JSONObject view = copy(entry);
+        JSONArray runArr = new JSONArray();
+        for (Object runID : (JSONArray) entry.get("runs")) {
+            JSONObject run = copy(runs.get((Long) runID));
+            run.put("url", "index.php?/runs/view/" + runID);
+            runArr.add(run);
+        }
+        view.put("runs", runArr);
+        return view;
+    }
+
+    // -------------------------------------------------------------- runs/tests
+
+    synchronized long addRun(long suiteID, long planID, String name, long[] caseIDs) {
+        Map<Long, JSONObject> runTests = new LinkedHashMap<>();
+        long runID = nextId++;
+        for (long caseID : caseIDs) {
+            JSONObject testCase = require(cases, caseID, "case_ids");
+            JSONObject test = new JSONObject();
+            test.put("id", nextId++);
+            test.put("case_id", caseID);
+            test.put("run_id", runID);
+            test.put("status_id", 3L);
+            test.put("title", testCase.get("title"));
+            runTests.put(caseID, test);
+        }
+        JSONObject run = new JSONObject();
+        run.put("id", runID);
+        run.put("suite_id", suiteID);
+        run.put("plan_id", planID == 0 ? null : planID);
+        run.put("name", name);
+        run.put("created_on", now());
+        runs.put(runID, run);
+        tests.put(runID, runTests);
+        return runID;
+    }
+
+    /**
+     * @param statuses: Only tests whose latest status is one of these, null for all
+     */
+    synchronized List<JSONObject> getTests(long runID, long[] statuses, int offset, int limit) {
+        return page(requireRun(runID).values(),
+                test -> statuses == null || contains(statuses, (Long) test.get("status_id")), offset, limit);
+    }
+
+    private Map<Long, JSONObject> requireRun(long runID) {
+        Map<Long, JSONObject> runTests = tests.get(runID);
+        if (runTests == null) {
+            throw new StubError(400, "Field :run_id is not a valid test run.");
+        }
+        return runTests;
+    }
+
+    // ----------------------------------------------------------------- results
+
+    synchronized JSONObject addResultForCase(long runID, long caseID, JSONObject data) {
+        return addResult(requireTest(runID, caseID), data);
+    }
+
+    /**
+     * Adds all results or none, like TestRail: one case that is not in the run fails the whole request
+     */
+    synchronized JSONArray addResultsForCases(long runID, JSONArray data) {
+        for (Object result : data) {
+            requireTest(runID, toLong(((JSONObject) result).get("case_id")));
+        }
+        JSONArray added = new JSONArray();
+        for (Object result : data) {
+            JSONObject resultData = (JSONObject) result;
+            added.add(addResult(requireTest(runID, toLong(resultData.get("case_id"))), resultData));
+        }
+        return added;
+    }
+
+    /**
+     * Results of the case in the run, newest first
+     */
+    synchronized List<JSONObject> getResultsForCase(long runID, long caseID, int offset, int limit) {
+        List<JSONObject> newestFirst = new ArrayList<>(results.getOrDefault((Long) requireTest(runID, caseID).get("id"), List.of()));
+        Collections.reverse(newestFirst);
+        return page(newestFirst, result -> true, offset, limit);
+    }
+
+    private JSONObject addResult(JSONObject test, JSONObject data) {
+        JSONObject result = new JSONObject();
+        result.put("id", nextId++);
+        result.put("test_id", test.get("id"));
+        Long status = data.get("status_id") == null ? null : toLong(data.get("status_id"));
+        result.put("status_id", status);
+        result.put("comment", data.get("comment"));
+        result.put("created_on", now());
+        results.computeIfAbsent((Long) test.get("id"), id -> new ArrayList<>()).add(result);
+        if (status != null) {
+            test.put("status_id", status);
+        }
+        return copy(result);
+    }
+
+    private JSONObject requireTest(long runID, long caseID) {
+        JSONObject test = requireRun(runID).get(caseID);
+        if (test == null) {
+            throw new StubError(400, "No (active) test found for the run/case combination.");
+        }
+        return test;
+    }
+
+    // ------------------------------------------------------------- attachments
+
+    synchronized long addAttachment(byte[] content) {
+        long attachmentID = nextId++;
+        attachments.put(attachmentID, content);
+        return attachmentID;
+    }
+
+    synchronized byte[] getAttachment(long attachmentID) {
+        byte[] content = attachments.get(attachmentID);
+        if (content == null) {
+            throw new StubError(400, "Field :attachment_id is not a valid attachment.");
+        }
+        return content;
+    }
+
+    // ----------------------------------------------------------------- helpers
+
+    private static JSONObject require(Map<Long, JSONObject> entities, long id, String field) {
+        JSONObject entity = entities.get(id);
+        if (entity == null) {
+            throw new StubError(400, "Field :" + field + " is not a valid ID.");
+        }
+        return entity;
+    }
+
+    private static List<JSONObject> page(Iterable<JSONObject> entities, Predicate<JSONObject> filter, int offset, int limit) {
+        List<JSONObject> found = new ArrayList<>();
+        int matched = 0;
+        for (JSONObject entity : entities) {
+            if (filter.test(entity) && matched++ >= offset) {
+                found.add(copy(entity));
+                if (found.size() > limit) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject copy(JSONObject source) {
+        JSONObject copy = new JSONObject();
+        for (Object field : source.entrySet()) {
+            Map.Entry<Object, Object> entry = (Map.Entry<Object, Object>) field;
+            Object value = entry.getValue();
+            if (value instanceof JSONArray) {
+                JSONArray array = new JSONArray();
+                for (Object element : (JSONArray) value) {
+                    array.add(element instanceof JSONObject ? copy((JSONObject) element) : element);
+                }
+                value = array;
+            } else if (value instanceof JSONObject) {
+                value = copy((JSONObject) value);
+            }
+            copy.put(entry.getKey(), value);
+        }
+        return copy;
+    }
+
+    private static boolean contains(long[] values, long value) {
+        for (long candidate : values) {
+            if (candidate == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value == null) {
+            throw new StubError(400, "Field is required.");
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new StubError(400, "Field is not a valid ID: " + value);
+        }
+    }
+
+    /**
+     * Reads an ID list given as JSON array or comma separated string
+     */
+    static long[] toLongs(Object value) {
+        if (value == null) {
+            return new long[0];
+        }
+        List<?> items = value instanceof List ? (List<?>) value : Arrays.asList(value.toString().split(","));
+        long[] ids = new long[items.size()];
+        int count = 0;
+        for (Object item : items) {
+            if (!item.toString().trim().isEmpty()) {
+                ids[count++] = toLong(item);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+}
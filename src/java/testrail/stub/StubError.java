@@ -0,0 +1,20 @@
+package testrail.stub;
+
+/**
+ * Error answer of the stub server, sent as {"error": message} with the status code like TestRail does
+ */
+class StubError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    StubError(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,497 @@
+package testrail.stub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a TestRail server, to run and benchmark TestRailRule, TestRailHook and
+ * TestRailBackup without a live instance. Pass getUrl() to APIClient as base URL.
+ *
+ * State is kept in memory and can be seeded with synthetic suites and plans (seedSuite, seedPlan).
+ * Latency, 500 errors and 429 responses (with Retry-After) can be injected on every request.
+ * Implements the API methods used by this project, with TestRail's pagination for bulk methods:
+ * get_plan, get_plans, add_plan, add_plan_entry, get_suite, add_suite, update_suite, delete_suite,
+ * get_section, get_sections, add_section, copy_cases_to_section, get_cases, get_tests,
+ * add_result_for_case, add_results_for_cases, get_results_for_case, add_attachment_to_result,
+ * add_attachment_to_run and get_attachment.
+ *
+ * Run main to serve a seeded project for manual benchmarking:
+ * java testrail.stub.TestRailStubServer [port] [cases] [sections], with faults set by the system
+ * properties testrail.stub.latency.millis, testrail.stub.latency.jitter.millis, testrail.stub.error.rate,
+ * testrail.stub.throttle.rate and testrail.stub.retry.after.seconds.
+ */
+public class TestRailStubServer {
+
+    private static final Logger logger = LogManager.getLogger(TestRailStubServer.class);
+    private static final String API_PREFIX = "/api/v2/";
+
+    private final StubData data = new StubData();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile int pageSize = 250;
+    private volatile long userID = 1;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param port:    Port to listen on (loopback only), 0 for any free port
+     * @param threads: Number of requests served at once
+     */
+    public TestRailStubServer(int port, int threads) throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "testrail-stub-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Headers and body go out in separate writes, with Nagle every small response waits for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    public TestRailStubServer() throws IOException {
+        this(0, 32);
+    }
+
+    public TestRailStubServer start() {
+        server.start();
+        logger.info("TestRail stub server listening on " + getUrl());
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Base URL to pass to APIClient
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    // ------------------------------------------------------------ configuration
+
+    /**
+     * Delays every response by latencyMillis plus a random 0..jitterMillis
+     */
+    public TestRailStubServer setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Fraction (0..1) of requests answered with 500 without being processed
+     */
+    public TestRailStubServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Fraction (0..1) of requests answered with 429 and 'Retry-After: retryAfterSeconds'
+     */
+    public TestRailStubServer setThrottleRate(double throttleRate, int retryAfterSeconds) {
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Maximum elements per page of bulk methods, TestRail uses 250
+     */
+    public TestRailStubServer setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * User ID recorded as created_by of new plans
+     */
+    public TestRailStubServer setUserID(long userID) {
+        this.userID = userID;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    // ------------------------------------------------------------------ seeding
+
+    /**
+     * Creates a suite with a section tree (up to four children per section) and the cases spread
+     * evenly over the sections
+     *
+     * @return ID of the suite
+     */
+    public long seedSuite(long projectID, String name, int sectionCount, int caseCount) {
+        long suiteID = (Long) data.addSuite(projectID, name, "Synthetic suite").get("id");
+        long[] sectionIDs = new long[Math.max(1, sectionCount)];
+        for (int i = 0; i < sectionIDs.length; i++) {
+            Long parentID = i < 4 ? null : sectionIDs[i / 4 - 1];
+            sectionIDs[i] = (Long) data.addSection(suiteID, "Section " + (i + 1), parentID).get("id");
+        }
+        for (int i = 0; i < caseCount; i++) {
+            data.addCase(suiteID, sectionIDs[i % sectionIDs.length], "Case " + (i + 1));
+        }
+        return suiteID;
+    }
+
+    /**
+     * Creates a plan with one entry including all cases per suite
+     *
+     * @return The plan, as get_plan would answer it
+     */
+    public JSONObject seedPlan(long projectID, String name, long... suiteIDs) {
+        JSONObject plan = new JSONObject();
+        plan.put("name", name);
+        JSONArray entries = new JSONArray();
+        for (long suiteID : suiteIDs) {
+            JSONObject entry = new JSONObject();
+            entry.put("suite_id", suiteID);
+            entry.put("include_all", true);
+            entries.add(entry);
+        }
+        plan.put("entries", entries);
+        return data.addPlan(projectID, plan, userID);
+    }
+
+    /**
+     * Adds a result with the status to the case in the run, e.g. to seed failed tests
+     */
+    public void seedResult(long runID, long caseID, int statusID) {
+        JSONObject result = new JSONObject();
+        result.put("status_id", (long) statusID);
+        data.addResultForCase(runID, caseID, result);
+    }
+
+    /**
+     * Marks the case as updated now
+     */
+    public void touchCase(long caseID) {
+        data.touchCase(caseID);
+    }
+
+    // ----------------------------------------------------------------- handling
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            delay();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (throttleRate > 0 && random.nextDouble() < throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                sendError(exchange, 429, "API Rate Limit Exceeded - Retry after " + retryAfterSeconds + " seconds");
+                return;
+            }
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                sendError(exchange, 500, "Injected server error");
+                return;
+            }
+
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null || !query.startsWith(API_PREFIX)) {
+                sendError(exchange, 404, "Unknown URL: " + exchange.getRequestURI());
+                return;
+            }
+            String call = query.substring(API_PREFIX.length());
+            int paramStart = call.indexOf('&');
+            String[] path = (paramStart < 0 ? call : call.substring(0, paramStart)).split("/");
+            Map<String, String> params = parseParams(paramStart < 0 ? "" : call.substring(paramStart + 1));
+            boolean post = "POST".equalsIgnoreCase(exchange.getRequestMethod());
+
+            if (post && path[0].startsWith("add_attachment")) {
+                JSONObject attachment = new JSONObject();
+                attachment.put("attachment_id", data.addAttachment(readAttachment(exchange)));
+                sendJson(exchange, attachment);
+            } else if (!post && path[0].equals("get_attachment")) {
+                byte[] content = data.getAttachment(id(path, 1));
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            } else if (post) {
+                sendJson(exchange, handlePost(path, params, readBody(exchange)));
+            } else {
+                sendJson(exchange, handleGet(path, params, call));
+            }
+        } catch (StubError e) {
+            sendError(exchange, e.getStatusCode(), e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Stub request " + exchange.getRequestURI() + " failed", e);
+            sendError(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Object handleGet(String[] path, Map<String, String> params, String call) {
+        int offset = params.containsKey("offset") ? (int) StubData.toLong(params.get("offset")) : 0;
+        int limit = Math.min(pageSize, params.containsKey("limit") ? (int) StubData.toLong(params.get("limit")) : pageSize);
+        switch (path[0]) {
+            case "get_plan":
+                return data.getPlan(id(path, 1));
+            case "get_suite":
+                return data.getSuite(id(path, 1));
+            case "get_section":
+                return data.getSection(id(path, 1));
+            case "get_plans":
+                return page("plans", call, offset, limit, data.getPlans(id(path, 1), optionalID(params, "created_by"),
+                        optionalID(params, "created_after"), offset, limit));
+            case "get_sections":
+                return page("sections", call, offset, limit,
+                        data.getSections(StubData.toLong(params.get("suite_id")), offset, limit));
+            case "get_cases":
+                return page("cases", call, offset, limit, data.getCases(StubData.toLong(params.get("suite_id")),
+                        optionalID(params, "section_id"), optionalID(params, "updated_after"), offset, limit));
+            case "get_tests":
+                long[] statuses = params.containsKey("status_id") ? StubData.toLongs(params.get("status_id")) : null;
+                return page("tests", call, offset, limit, data.getTests(id(path, 1), statuses, offset, limit));
+            case "get_results_for_case":
+                return page("results", call, offset, limit, data.getResultsForCase(id(path, 1), id(path, 2), offset, limit));
+            default:
+                throw new StubError(400, "Unknown method '" + path[0] + "'");
+        }
+    }
+
+    private Object handlePost(String[] path, Map<String, String> params, JSONObject body) {
+        switch (path[0]) {
+            case "add_plan":
+                return data.addPlan(id(path, 1), body, userID);
+            case "add_plan_entry":
+                return data.addPlanEntry(id(path, 1), body);
+            case "add_suite":
+                return data.addSuite(id(path, 1), (String) body.get("name"), (String) body.get("description"));
+            case "update_suite":
+                return data.updateSuite(id(path, 1), body);
+            case "delete_suite":
+                data.deleteSuite(id(path, 1));
+                return new JSONObject();
+            case "add_section":
+                Object parentID = body.get("parent_id");
+                return data.addSection(StubData.toLong(body.get("suite_id")), (String) body.get("name"),
+                        parentID == null ? null : StubData.toLong(parentID));
+            case "copy_cases_to_section":
+                data.copyCasesToSection(id(path, 1), StubData.toLongs(body.get("case_ids")));
+                return new JSONObject();
+            case "add_result_for_case":
+                return data.addResultForCase(id(path, 1), id(path, 2), body);
+            case "add_results_for_cases":
+                Object results = body.get("results");
+                if (!(results instanceof JSONArray)) {
+                    throw new StubError(400, "Field :results is required.");
+                }
+                return data.addResultsForCases(id(path, 1), (JSONArray) results);
+            default:
+                throw new StubError(400, "Unknown method '" + path[0] + "'");
+        }
+    }
+
+    /**
+     * Wraps a page of a bulk method like TestRail 6.7+, with '_links.next' set while more elements follow
+     */
+    private static JSONObject page(String key, String call, int offset, int limit, List<JSONObject> elements) {
+        boolean more = elements.size() > limit;
+        JSONArray page = new JSONArray();
+        page.addAll(more ? elements.subList(0, limit) : elements);
+
+        JSONObject links = new JSONObject();
+        links.put("next", more ? API_PREFIX + withoutPaging(call) + "&limit=" + limit + "&offset=" + (offset + limit) : null);
+        links.put("prev", offset > 0 ? API_PREFIX + withoutPaging(call) + "&limit=" + limit + "&offset=" + Math.max(0, offset - limit) : null);
+
+        JSONObject response = new JSONObject();
+        response.put("offset", (long) offset);
+        response.put("limit", (long) limit);
+        response.put("size", (long) page.size());
+        response.put("_links", links);
+        response.put(key, page);
+        return response;
+    }
+
+    private static String withoutPaging(String call) {
+        StringBuilder stripped = new StringBuilder();
+        for (String part : call.split("&")) {
+            if (!part.startsWith("offset=") && !part.startsWith("limit=")) {
+                stripped.append(stripped.length() == 0 ? "" : "&").append(part);
+            }
+        }
+        return stripped.toString();
+    }
+
+    private void delay() {
+        long millis = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long id(String[] path, int index) {
+        if (path.length <= index) {
+            throw new StubError(400, "Missing ID in '" + String.join("/", path) + "'");
+        }
+        return StubData.toLong(path[index]);
+    }
+
+    // Blank filters, e.g. '&created_by=' without a configured user, are ignored
+    private static Long optionalID(Map<String, String> params, String name) {
+        String value = params.get(name);
+        return value == null || value.isEmpty() ? null : StubData.toLong(value);
+    }
+
+    private static Map<String, String> parseParams(String query) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (String part : query.split("&")) {
+            int eq = part.indexOf('=');
+            if (eq > 0) {
+                params.put(part.substring(0, eq), URLDecoder.decode(part.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static JSONObject readBody(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        if (body.length == 0) {
+            return new JSONObject();
+        }
+        try {
+            Object parsed = new JSONParser().parse(new String(body, StandardCharsets.UTF_8));
+            if (!(parsed instanceof JSONObject)) {
+                throw new StubError(400, "Request body must be a JSON object");
+            }
+            return (JSONObject) parsed;
+        } catch (ParseException e) {
+            throw new StubError(400, "Invalid JSON: " + e);
+        }
+    }
+
+    /**
+     * Returns the content of the first part of a multipart/form-data body
+     */
+    private static byte[] readAttachment(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        int boundaryAt = contentType == null ? -1 : contentType.indexOf("boundary=");
+        if (boundaryAt < 0) {
+            throw new StubError(400, "Expected multipart/form-data");
+        }
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] closing = ("\r\n--" + contentType.substring(boundaryAt + 9)).getBytes(StandardCharsets.ISO_8859_1);
+        int start = indexOf(body, headerEnd, 0);
+        int end = start < 0 ? -1 : indexOf(body, closing, start + headerEnd.length);
+        if (end < 0) {
+            throw new StubError(400, "Malformed multipart body");
+        }
+        byte[] content = new byte[end - start - headerEnd.length];
+        System.arraycopy(body, start + headerEnd.length, content, 0, content.length);
+        return content;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void sendJson(HttpExchange exchange, Object json) throws IOException {
+        byte[] body = String.valueOf(json).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        byte[] body = error.toJSONString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        int cases = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int sections = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, cases / 50);
+
+        TestRailStubServer stub = new TestRailStubServer(port, 64)
+                .setLatency(Long.getLong("testrail.stub.latency.millis", 0L), Long.getLong("testrail.stub.latency.jitter.millis", 0L))
+                .setErrorRate(Double.parseDouble(System.getProperty("testrail.stub.error.rate", "0")))
+                .setThrottleRate(Double.parseDouble(System.getProperty("testrail.stub.throttle.rate", "0")),
+                        Integer.getInteger("testrail.stub.retry.after.seconds", 1));
+        long suiteID = stub.seedSuite(1, "Synthetic suite", sections, cases);
+        JSONObject plan = stub.seedPlan(1, "Synthetic plan", suiteID);
+        List<Object> runIDs = new ArrayList<>();
+        for (Object entry : (JSONArray) plan.get("entries")) {
+            for (Object run : (JSONArray) ((JSONObject) entry).get("runs")) {
+                runIDs.add(((JSONObject) run).get("id"));
+            }
+        }
+        stub.start();
+        System.out.println("TestRail stub at " + stub.getUrl() + ": project 1, suite " + suiteID + " (" + cases
+                + " cases, " + sections + " sections), plan " + plan.get("id") + " with runs " + runIDs);
+        Thread.currentThread().join();
+    }
+}
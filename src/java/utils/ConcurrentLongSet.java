@@ -0,0 +1,95 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Thread safe set of primitive longs, striped over LongSets with a lock each so threads adding
+ * different values rarely wait for each other.
+ */
+public class ConcurrentLongSet {
+
+    private final LongSet[] stripes;
+    private final int mask;
+
+    public ConcurrentLongSet() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public ConcurrentLongSet(int concurrency) {
+        int count = Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1);
+        stripes = new LongSet[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LongSet();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Adds the value, returns false if it was already present
+     */
+    public boolean add(long value) {
+        LongSet stripe = stripeOf(value);
+        synchronized (stripe) {
+            return stripe.add(value);
+        }
+    }
+
+    public boolean contains(long value) {
+        LongSet stripe = stripeOf(value);
+        synchronized (stripe) {
+            return stripe.contains(value);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongSet stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Passes each value to the action, holding one stripe at a time; values added meanwhile may be missed
+     */
+    public void forEach(LongConsumer action) {
+        for (long value : toArray()) {
+            action.accept(value);
+        }
+    }
+
+    /**
+     * Returns the values in ascending order
+     */
+    public long[] toArray() {
+        long[] values = new long[0];
+        for (LongSet stripe : stripes) {
+            long[] part;
+            synchronized (stripe) {
+                part = stripe.toArray();
+            }
+            int start = values.length;
+            values = Arrays.copyOf(values, start + part.length);
+            System.arraycopy(part, 0, values, start, part.length);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // High bits of the hash pick the stripe, LongSet uses the low bits for the slot
+    private LongSet stripeOf(long value) {
+        return stripes[(LongSet.mix(value) >>> 16) & mask];
+    }
+}
@@ -0,0 +1,152 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to primitive long values, e.g. case ID to run
+ * ID, without boxing every entry into a HashMap&lt;Long, Long&gt;. Not thread safe; safe to share for
+ * reading once filled.
+ */
+public class LongLongMap {
+
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    // 0 is the empty key marker, so its entry is kept apart
+    private boolean containsZero;
+    private long zeroValue;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expectedSize) {
+        int capacity = LongSet.tableSizeFor(expectedSize);
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Sets the value of the key, returns false if the key was already present (and is now updated)
+     */
+    public boolean put(long key, long value) {
+        if (key == EMPTY) {
+            boolean added = !containsZero;
+            containsZero = true;
+            zeroValue = value;
+            size += added ? 1 : 0;
+            return added;
+        }
+        int index = indexOf(keys, key);
+        values[index] = value;
+        if (keys[index] == key) {
+            return false;
+        }
+        keys[index] = key;
+        if (++size > keys.length * 3 / 4) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the value only if the key is not present yet, returns false if it was
+     */
+    public boolean putIfAbsent(long key, long value) {
+        return !containsKey(key) && put(key, value);
+    }
+
+    public boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return containsZero;
+        }
+        return keys[indexOf(keys, key)] == key;
+    }
+
+    /**
+     * Returns the value of the key, or defaultValue if the key is not present
+     */
+    public long get(long key, long defaultValue) {
+        if (key == EMPTY) {
+            return containsZero ? zeroValue : defaultValue;
+        }
+        int index = indexOf(keys, key);
+        return keys[index] == key ? values[index] : defaultValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    public void forEach(EntryConsumer action) {
+        if (containsZero) {
+            action.accept(EMPTY, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys in ascending order
+     */
+    public long[] keys() {
+        long[] sorted = new long[size];
+        int i = 0;
+        if (containsZero) {
+            sorted[i++] = EMPTY;
+        }
+        for (long key : keys) {
+            if (key != EMPTY) {
+                sorted[i++] = key;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        for (long key : keys()) {
+            text.append(text.length() > 1 ? ", " : "").append(key).append('=').append(get(key, 0));
+        }
+        return text.append('}').toString();
+    }
+
+    // Slot holding the key, or the empty slot it would go to
+    private static int indexOf(long[] table, long key) {
+        int mask = table.length - 1;
+        int index = LongSet.mix(key) & mask;
+        while (table[index] != EMPTY && table[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int index = indexOf(keys, oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
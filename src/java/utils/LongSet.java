@@ -0,0 +1,142 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Open addressing hash set of primitive longs, for ID sets that would otherwise box every element
+ * into a HashSet&lt;Long&gt;. Not thread safe.
+ */
+public class LongSet {
+
+    private static final long EMPTY = 0L;
+
+    private long[] slots;
+    private int size;
+    // 0 is the empty slot marker, so it is tracked apart
+    private boolean containsZero;
+
+    public LongSet() {
+        this(16);
+    }
+
+    public LongSet(int expectedSize) {
+        slots = new long[tableSizeFor(expectedSize)];
+    }
+
+    public static LongSet of(long... values) {
+        LongSet set = new LongSet(values.length);
+        for (long value : values) {
+            set.add(value);
+        }
+        return set;
+    }
+
+    /**
+     * Adds the value, returns false if it was already present
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = indexOf(slots, value);
+        if (slots[index] == value) {
+            return false;
+        }
+        slots[index] = value;
+        if (++size > slots.length * 3 / 4) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    public void addAll(long[] values) {
+        for (long value : values) {
+            add(value);
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsZero;
+        }
+        return slots[indexOf(slots, value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(LongConsumer action) {
+        if (containsZero) {
+            action.accept(EMPTY);
+        }
+        for (long slot : slots) {
+            if (slot != EMPTY) {
+                action.accept(slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the values in ascending order
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int i = 0;
+        if (containsZero) {
+            values[i++] = EMPTY;
+        }
+        for (long slot : slots) {
+            if (slot != EMPTY) {
+                values[i++] = slot;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // Slot holding the value, or the empty slot it would go to
+    private static int indexOf(long[] table, long value) {
+        int mask = table.length - 1;
+        int index = mix(value) & mask;
+        while (table[index] != EMPTY && table[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = slots;
+        slots = new long[capacity];
+        for (long slot : old) {
+            if (slot != EMPTY) {
+                slots[indexOf(slots, slot)] = slot;
+            }
+        }
+    }
+
+    static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 4 / 3 + 1) - 1) << 1;
+        return Math.max(16, capacity);
+    }
+}
@@ -0,0 +1,155 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Bitmap of non-negative longs, e.g. case IDs, split in chunks of 4096 values. Only chunks holding
+ * a value are allocated, so IDs close to each other take a bit each and a lone ID a chunk of 512
+ * bytes. Made for set algebra on case selections: or, and, andNot. Not thread safe.
+ */
+public class SparseBitSet {
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_WORDS = 1 << (CHUNK_SHIFT - 6);
+
+    // Chunk index to its words, ascending so values come out sorted
+    private final TreeMap<Long, long[]> chunks = new TreeMap<>();
+
+    public static SparseBitSet of(long... values) {
+        SparseBitSet set = new SparseBitSet();
+        set.addAll(values);
+        return set;
+    }
+
+    /**
+     * Adds the value, returns false if it was already present
+     */
+    public boolean add(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        long[] words = chunks.computeIfAbsent(value >>> CHUNK_SHIFT, chunk -> new long[CHUNK_WORDS]);
+        int word = (int) (value >>> 6) & (CHUNK_WORDS - 1);
+        long bit = 1L << value;
+        boolean added = (words[word] & bit) == 0;
+        words[word] |= bit;
+        return added;
+    }
+
+    public void addAll(long[] values) {
+        for (long value : values) {
+            add(value);
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value < 0) {
+            return false;
+        }
+        long[] words = chunks.get(value >>> CHUNK_SHIFT);
+        return words != null && (words[(int) (value >>> 6) & (CHUNK_WORDS - 1)] & (1L << value)) != 0;
+    }
+
+    /**
+     * Adds the values of the other set, returns this set
+     */
+    public SparseBitSet or(SparseBitSet other) {
+        for (Map.Entry<Long, long[]> chunk : other.chunks.entrySet()) {
+            long[] words = chunks.computeIfAbsent(chunk.getKey(), key -> new long[CHUNK_WORDS]);
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] |= chunk.getValue()[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Keeps only the values also in the other set, returns this set
+     */
+    public SparseBitSet and(SparseBitSet other) {
+        Iterator<Map.Entry<Long, long[]>> iterator = chunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, long[]> chunk = iterator.next();
+            long[] otherWords = other.chunks.get(chunk.getKey());
+            if (otherWords == null || !retain(chunk.getValue(), otherWords, false)) {
+                iterator.remove();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes the values of the other set, returns this set
+     */
+    public SparseBitSet andNot(SparseBitSet other) {
+        Iterator<Map.Entry<Long, long[]>> iterator = chunks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, long[]> chunk = iterator.next();
+            long[] otherWords = other.chunks.get(chunk.getKey());
+            if (otherWords != null && !retain(chunk.getValue(), otherWords, true)) {
+                iterator.remove();
+            }
+        }
+        return this;
+    }
+
+    public int size() {
+        int size = 0;
+        for (long[] words : chunks.values()) {
+            for (long word : words) {
+                size += Long.bitCount(word);
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /**
+     * Passes each value to the action, in ascending order
+     */
+    public void forEach(LongConsumer action) {
+        for (Map.Entry<Long, long[]> chunk : chunks.entrySet()) {
+            long base = chunk.getKey() << CHUNK_SHIFT;
+            long[] words = chunk.getValue();
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base + ((long) i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the values in ascending order
+     */
+    public long[] toArray() {
+        long[] values = new long[size()];
+        int[] count = {0};
+        forEach(value -> values[count[0]++] = value);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // Ands the words with the other words, or their complement; returns false if no bit is left
+    private static boolean retain(long[] words, long[] otherWords, boolean complement) {
+        boolean any = false;
+        for (int i = 0; i < CHUNK_WORDS; i++) {
+            words[i] &= complement ? ~otherWords[i] : otherWords[i];
+            any |= words[i] != 0;
+        }
+        return any;
+    }
+}